@@ -0,0 +1,99 @@
+/*
+*  DocumentCharSequence.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * A <code>CharSequence</code> view of a document that reads the text
+ * through a partial return <code>Segment</code>, so that the characters
+ * are used in place instead of being copied into a <code>String</code>.
+ * <p/>
+ * The view caches the chunk of text it read last. It must be
+ * <code>reset()</code> after the document changes, and it must only be
+ * used on the thread that owns the document.
+ */
+public class DocumentCharSequence implements CharSequence {
+    // chars read before the requested offset, for backwards scans
+    private static final int LOOK_BEHIND = 64;
+
+    private final Document document;
+    private final Segment segment = new Segment();
+    private int segmentStart;
+    private int segmentEnd;
+
+    public DocumentCharSequence(Document document) {
+        this.document = document;
+        segment.setPartialReturn(true);
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Drops the cached chunk. This must be called after the document
+     * changes.
+     */
+    public void reset() {
+        segment.array = null;
+        segmentStart = segmentEnd = 0;
+    }
+
+    public int length() {
+        return document.getLength();
+    }
+
+    public char charAt(int index) {
+        if (index < segmentStart || index >= segmentEnd) {
+            if (index < 0 || index >= document.getLength()) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of range: " + document.getLength());
+            }
+            load(Math.max(0, index - LOOK_BEHIND));
+            if (index >= segmentEnd) {
+                // the look behind ended at the gap of the content
+                load(index);
+            }
+        }
+        return segment.array[segment.offset + index - segmentStart];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > document.getLength() || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + "," + end + " out of range: " + document.getLength());
+        }
+        try {
+            return document.getText(start, end - start);
+        }
+        catch (BadLocationException e) {
+            throw new IndexOutOfBoundsException(e.getMessage());
+        }
+    }
+
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    private void load(int offset) {
+        try {
+            document.getText(offset, document.getLength() - offset, segment);
+        }
+        catch (BadLocationException e) {
+            throw new IndexOutOfBoundsException(e.getMessage());
+        }
+        segmentStart = offset;
+        segmentEnd = offset + segment.count;
+    }
+}
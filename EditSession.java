@@ -0,0 +1,196 @@
+/*
+*  EditSession.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded editing session: the text and caret position when the
+ * recording started, and the key, mouse, mouse wheel and scroll bar
+ * events that followed.
+ *
+ * @see EditSessionRecorder
+ * @see EditSessionReplayer
+ */
+public class EditSession {
+    private static final int MAGIC = 0x45445353;
+    private static final int VERSION = 2;
+
+    public static final int KEY = 0;
+    public static final int MOUSE = 1;
+    public static final int MOUSE_WHEEL = 2;
+    public static final int SCROLL = 3;
+
+    /**
+     * A recorded event. Only the fields used by the event's kind are set.
+     */
+    public static final class Event {
+        public int kind;
+        // milliseconds since the recording started
+        public long time;
+        public int id;
+        public int modifiers;
+        public int keyCode;
+        public char keyChar;
+        public int keyLocation;
+        public int x;
+        public int y;
+        public int clickCount;
+        public int button;
+        public int scrollType;
+        public int scrollAmount;
+        public int wheelRotation;
+        // the scroll bar, Adjustable.VERTICAL or HORIZONTAL, and its value
+        public int orientation;
+        public int value;
+    }
+
+    private String text;
+    private int caretPosition;
+    private int width;
+    private int height;
+    private final List<Event> events = new ArrayList<Event>();
+
+    public EditSession(String text, int caretPosition, int width, int height) {
+        this.text = text;
+        this.caretPosition = caretPosition;
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getCaretPosition() {
+        return caretPosition;
+    }
+
+    /**
+     * Returns the width of the text area when the recording started.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the text area when the recording started.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    void addEvent(Event event) {
+        events.add(event);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(caretPosition);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeInt(text.length());
+        data.writeChars(text);
+        data.writeInt(events.size());
+        for (Event event : events) {
+            data.writeByte(event.kind);
+            data.writeLong(event.time);
+            data.writeInt(event.id);
+            data.writeInt(event.modifiers);
+            switch (event.kind) {
+                case KEY:
+                    data.writeInt(event.keyCode);
+                    data.writeChar(event.keyChar);
+                    data.writeInt(event.keyLocation);
+                    break;
+                case MOUSE_WHEEL:
+                    data.writeInt(event.scrollType);
+                    data.writeInt(event.scrollAmount);
+                    data.writeInt(event.wheelRotation);
+                    // fall through, wheel events are mouse events
+                case MOUSE:
+                    data.writeInt(event.x);
+                    data.writeInt(event.y);
+                    data.writeInt(event.clickCount);
+                    data.writeInt(event.button);
+                    break;
+                case SCROLL:
+                    data.writeInt(event.orientation);
+                    data.writeInt(event.value);
+                    break;
+            }
+        }
+        data.flush();
+    }
+
+    public static EditSession read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not an edit session");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported edit session version " + version);
+        }
+        int caretPosition = data.readInt();
+        int width = data.readInt();
+        int height = data.readInt();
+        char[] chars = new char[data.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = data.readChar();
+        }
+        EditSession session = new EditSession(new String(chars), caretPosition, width, height);
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            Event event = new Event();
+            event.kind = data.readByte();
+            event.time = data.readLong();
+            event.id = data.readInt();
+            event.modifiers = data.readInt();
+            switch (event.kind) {
+                case KEY:
+                    event.keyCode = data.readInt();
+                    event.keyChar = data.readChar();
+                    event.keyLocation = data.readInt();
+                    break;
+                case MOUSE_WHEEL:
+                    event.scrollType = data.readInt();
+                    event.scrollAmount = data.readInt();
+                    event.wheelRotation = data.readInt();
+                    // fall through, wheel events are mouse events
+                case MOUSE:
+                    event.x = data.readInt();
+                    event.y = data.readInt();
+                    event.clickCount = data.readInt();
+                    event.button = data.readInt();
+                    break;
+                case SCROLL:
+                    event.orientation = data.readInt();
+                    event.value = data.readInt();
+                    break;
+                default:
+                    throw new IOException("Unknown event kind " + event.kind);
+            }
+            session.addEvent(event);
+        }
+        return session;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+*  EditSessionRecorder.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import javax.swing.*;
+import java.awt.event.*;
+
+/**
+ * Records the key, mouse and mouse wheel events of a text area, and the
+ * scroll bar moves made with the mouse, with the text they were applied
+ * to, so that the session can be replayed by an
+ * {@link EditSessionReplayer}.
+ * <pre>
+ *     EditSessionRecorder recorder = new EditSessionRecorder(textArea);
+ *     recorder.start();
+ *     ...
+ *     recorder.stop().write(out);
+ * </pre>
+ */
+public class EditSessionRecorder {
+    private final JEditTextArea textArea;
+    private final Listener listener = new Listener();
+    private EditSession session;
+    private long startTime;
+    // scroll bar moves are only recorded while the mouse is pressed on
+    // one, the others follow from the recorded key and mouse events
+    private boolean scrollBarPressed;
+
+    public EditSessionRecorder(JEditTextArea textArea) {
+        this.textArea = textArea;
+    }
+
+    /**
+     * Takes a snapshot of the text and starts recording.
+     */
+    public void start() {
+        if (session != null) {
+            return;
+        }
+        session = new EditSession(textArea.getText(), textArea.getCaretPosition(),
+                textArea.getWidth(), textArea.getHeight());
+        startTime = System.currentTimeMillis();
+        textArea.addKeyListener(listener);
+        TextAreaPainter painter = textArea.getPainter();
+        painter.addMouseListener(listener);
+        painter.addMouseMotionListener(listener);
+        painter.addMouseWheelListener(listener);
+        addScrollBarListener(textArea.vertical);
+        addScrollBarListener(textArea.horizontal);
+    }
+
+    private void addScrollBarListener(JScrollBar scrollBar) {
+        scrollBar.addMouseListener(listener);
+        scrollBar.addAdjustmentListener(listener);
+    }
+
+    private void removeScrollBarListener(JScrollBar scrollBar) {
+        scrollBar.removeMouseListener(listener);
+        scrollBar.removeAdjustmentListener(listener);
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @return The recorded session, or null if recording wasn't started
+     */
+    public EditSession stop() {
+        EditSession recorded = session;
+        if (recorded != null) {
+            textArea.removeKeyListener(listener);
+            TextAreaPainter painter = textArea.getPainter();
+            painter.removeMouseListener(listener);
+            painter.removeMouseMotionListener(listener);
+            painter.removeMouseWheelListener(listener);
+            removeScrollBarListener(textArea.vertical);
+            removeScrollBarListener(textArea.horizontal);
+            scrollBarPressed = false;
+            session = null;
+        }
+        return recorded;
+    }
+
+    public boolean isRecording() {
+        return session != null;
+    }
+
+    private EditSession.Event createEvent(int kind, InputEvent evt) {
+        EditSession.Event event = new EditSession.Event();
+        event.kind = kind;
+        event.time = evt.getWhen() - startTime;
+        event.id = evt.getID();
+        event.modifiers = evt.getModifiersEx();
+        return event;
+    }
+
+    private void recordKey(KeyEvent evt) {
+        EditSession.Event event = createEvent(EditSession.KEY, evt);
+        event.keyCode = evt.getKeyCode();
+        event.keyChar = evt.getKeyChar();
+        event.keyLocation = evt.getKeyLocation();
+        session.addEvent(event);
+    }
+
+    private void recordMouse(int kind, MouseEvent evt) {
+        EditSession.Event event = createEvent(kind, evt);
+        event.x = evt.getX();
+        event.y = evt.getY();
+        event.clickCount = evt.getClickCount();
+        event.button = evt.getButton();
+        if (evt instanceof MouseWheelEvent) {
+            MouseWheelEvent wheelEvent = (MouseWheelEvent) evt;
+            event.scrollType = wheelEvent.getScrollType();
+            event.scrollAmount = wheelEvent.getScrollAmount();
+            event.wheelRotation = wheelEvent.getWheelRotation();
+        }
+        session.addEvent(event);
+    }
+
+    private void recordScroll(AdjustmentEvent evt) {
+        EditSession.Event event = new EditSession.Event();
+        event.kind = EditSession.SCROLL;
+        event.time = System.currentTimeMillis() - startTime;
+        event.id = evt.getID();
+        event.orientation = evt.getAdjustable().getOrientation();
+        event.value = evt.getValue();
+        session.addEvent(event);
+    }
+
+    class Listener implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener, AdjustmentListener {
+        public void keyTyped(KeyEvent e) {
+            recordKey(e);
+        }
+
+        public void keyPressed(KeyEvent e) {
+            recordKey(e);
+        }
+
+        public void keyReleased(KeyEvent e) {
+            recordKey(e);
+        }
+
+        public void mouseClicked(MouseEvent e) {
+            if (e.getComponent() == textArea.getPainter()) {
+                recordMouse(EditSession.MOUSE, e);
+            }
+        }
+
+        public void mousePressed(MouseEvent e) {
+            if (e.getComponent() == textArea.getPainter()) {
+                recordMouse(EditSession.MOUSE, e);
+            }
+            else {
+                scrollBarPressed = true;
+            }
+        }
+
+        public void mouseReleased(MouseEvent e) {
+            if (e.getComponent() == textArea.getPainter()) {
+                recordMouse(EditSession.MOUSE, e);
+            }
+            else {
+                scrollBarPressed = false;
+            }
+        }
+
+        public void mouseEntered(MouseEvent e) {
+        }
+
+        public void mouseExited(MouseEvent e) {
+        }
+
+        public void mouseDragged(MouseEvent e) {
+            recordMouse(EditSession.MOUSE, e);
+        }
+
+        public void mouseMoved(MouseEvent e) {
+            recordMouse(EditSession.MOUSE, e);
+        }
+
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            recordMouse(EditSession.MOUSE_WHEEL, e);
+        }
+
+        public void adjustmentValueChanged(AdjustmentEvent e) {
+            if (scrollBarPressed) {
+                recordScroll(e);
+            }
+        }
+    }
+}
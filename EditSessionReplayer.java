@@ -0,0 +1,223 @@
+/*
+*  EditSessionReplayer.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import com.tplus.transform.design.ui.FormulaDesignContextProvider;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a recorded {@link EditSession} against a text area and measures
+ * how long each event takes to process and to paint. This works without
+ * a screen: key events are dispatched to the text area, past the focus
+ * manager, and mouse events to the painter, so they go through the same
+ * listeners, key bindings and input handler as real events. Scroll bar
+ * moves set the scroll bar and scroll the text area. The painter is
+ * painted into an image after every event.
+ * <p/>
+ * Events are replayed as fast as possible; the recorded delays between
+ * them are not waited for. Must be called on the event dispatch thread.
+ */
+public class EditSessionReplayer {
+    /**
+     * Event processing and paint times of a replay, in nanoseconds.
+     */
+    public static class Report {
+        private final long[] processNanos;
+        private final long[] paintNanos;
+
+        Report(long[] processNanos, long[] paintNanos) {
+            this.processNanos = processNanos;
+            this.paintNanos = paintNanos;
+        }
+
+        public int getEventCount() {
+            return processNanos.length;
+        }
+
+        public long[] getProcessNanos() {
+            return processNanos.clone();
+        }
+
+        public long[] getPaintNanos() {
+            return paintNanos.clone();
+        }
+
+        /**
+         * Returns a percentile of the event processing times.
+         *
+         * @param percentile The percentile, from 0 to 100
+         */
+        public long getProcessPercentile(double percentile) {
+            return percentile(processNanos, percentile);
+        }
+
+        /**
+         * Returns a percentile of the paint times.
+         *
+         * @param percentile The percentile, from 0 to 100
+         */
+        public long getPaintPercentile(double percentile) {
+            return percentile(paintNanos, percentile);
+        }
+
+        private static long percentile(long[] nanos, double percentile) {
+            if (nanos.length == 0) {
+                return 0;
+            }
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        public String toString() {
+            StringBuilder buffer = new StringBuilder();
+            buffer.append(getEventCount()).append(" events\n");
+            append(buffer, "process", processNanos);
+            append(buffer, "paint", paintNanos);
+            return buffer.toString();
+        }
+
+        private static void append(StringBuilder buffer, String name, long[] nanos) {
+            buffer.append(name);
+            double[] percentiles = {50, 90, 99, 100};
+            for (double percentile : percentiles) {
+                buffer.append(" p").append((int) percentile).append('=')
+                        .append(percentile(nanos, percentile) / 1000).append("us");
+            }
+            buffer.append('\n');
+        }
+    }
+
+    private final JEditTextArea textArea;
+
+    public EditSessionReplayer(JEditTextArea textArea) {
+        this.textArea = textArea;
+    }
+
+    /**
+     * Sets the session's text and replays its events.
+     *
+     * @param session The session
+     * @return The times taken by each event
+     */
+    public Report replay(EditSession session) {
+        int width = session.getWidth() > 0 ? session.getWidth() : 800;
+        int height = session.getHeight() > 0 ? session.getHeight() : 600;
+        textArea.setSize(width, height);
+        textArea.doLayout();
+        textArea.recalculateVisibleLines();
+        textArea.setText(session.getText());
+        textArea.setCaretPosition(Math.min(session.getCaretPosition(), textArea.getDocumentLength()));
+
+        TextAreaPainter painter = textArea.getPainter();
+        BufferedImage image = new BufferedImage(Math.max(1, painter.getWidth()), Math.max(1, painter.getHeight()),
+                BufferedImage.TYPE_INT_RGB);
+        paint(painter, image);
+
+        List<EditSession.Event> events = session.getEvents();
+        long[] processNanos = new long[events.size()];
+        long[] paintNanos = new long[events.size()];
+        long when = System.currentTimeMillis();
+        for (int i = 0; i < events.size(); i++) {
+            EditSession.Event event = events.get(i);
+            long start = System.nanoTime();
+            dispatch(event, when + event.time);
+            long processed = System.nanoTime();
+            paint(painter, image);
+            processNanos[i] = processed - start;
+            paintNanos[i] = System.nanoTime() - processed;
+        }
+        return new Report(processNanos, paintNanos);
+    }
+
+    private void dispatch(EditSession.Event event, long when) {
+        TextAreaPainter painter = textArea.getPainter();
+        switch (event.kind) {
+            case EditSession.KEY:
+                // the focus manager drops key events for a text area that is
+                // not showing, so skip it but keep the rest of the dispatch
+                KeyEvent keyEvent = new KeyEvent(textArea, event.id, when, event.modifiers,
+                        event.keyCode, event.keyChar, event.keyLocation);
+                KeyboardFocusManager.getCurrentKeyboardFocusManager().redispatchEvent(textArea, keyEvent);
+                break;
+            case EditSession.MOUSE_WHEEL:
+                painter.dispatchEvent(new MouseWheelEvent(painter, event.id, when, event.modifiers,
+                        event.x, event.y, event.clickCount, false, event.scrollType, event.scrollAmount,
+                        event.wheelRotation));
+                break;
+            case EditSession.MOUSE:
+                painter.dispatchEvent(new MouseEvent(painter, event.id, when, event.modifiers,
+                        event.x, event.y, event.clickCount, false, event.button));
+                break;
+            case EditSession.SCROLL:
+                // the text area follows its scroll bars later on the event
+                // queue, so scroll it here to have the paint show the move
+                if (event.orientation == Adjustable.VERTICAL) {
+                    textArea.vertical.setValue(event.value);
+                    textArea.setFirstLine(textArea.vertical.getValue());
+                }
+                else {
+                    textArea.horizontal.setValue(event.value);
+                    textArea.setHorizontalOffset(-textArea.horizontal.getValue());
+                }
+                break;
+        }
+    }
+
+    private static void paint(TextAreaPainter painter, BufferedImage image) {
+        Graphics2D gfx = image.createGraphics();
+        try {
+            gfx.setClip(0, 0, image.getWidth(), image.getHeight());
+            gfx.setFont(painter.getFont());
+            painter.paint(gfx);
+        }
+        finally {
+            gfx.dispose();
+        }
+    }
+
+    /**
+     * Replays a session file against a formula text area and prints the
+     * report.
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: EditSessionReplayer <session file>");
+            System.exit(1);
+        }
+        InputStream in = new FileInputStream(args[0]);
+        final EditSession session;
+        try {
+            session = EditSession.read(in);
+        }
+        finally {
+            in.close();
+        }
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                Report report = new EditSessionReplayer(new FormulaTextArea((FormulaDesignContextProvider) null)).replay(session);
+                System.out.print(report);
+            }
+        });
+        System.exit(0);
+    }
+}
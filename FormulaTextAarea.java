@@ -38,10 +38,12 @@ import com.tplus.transform.util.Location;
 import javax.swing.*;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.Segment;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -134,6 +136,8 @@ public class FormulaTextArea extends JEditTextArea {
     public void setFunctionManager(FunctionManager functionManager) {
         this.functionManager = functionManager;
         functionHyperLinkHighlight.setFunctionManager(functionManager);
+        // function names are marked using the function manager
+        getPainter().getTokenCache().clear();
     }
 
     public MultiLocationHighlight getLocationHighlight() {
@@ -367,6 +371,15 @@ public class FormulaTextArea extends JEditTextArea {
 
     public void setCodeAST(CodeAST formulaAST) {
         this.codeAST = formulaAST;
+        fieldHyperLinkHighlight.buildRefIndex(formulaAST);
+    }
+
+    protected void documentChanged(DocumentEvent evt) {
+        super.documentChanged(evt);
+        // the offsets of the references no longer match the AST
+        if (fieldHyperLinkHighlight != null) {
+            fieldHyperLinkHighlight.clearRefIndex();
+        }
     }
 
     public void addTextRefClickListener(TextRefClickListener textRefClickListener) {
@@ -389,24 +402,92 @@ public class FormulaTextArea extends JEditTextArea {
 
 
     class FieldHyperLinkHighlightImpl extends HyperLinkHighlight {
+        // the variable references of refIndexAST sorted by start offset,
+        // outer references before the ones they enclose. refParents holds
+        // the index of the closest earlier reference still open at each
+        // start, or -1.
+        private CodeAST refIndexAST;
+        private int[] refStarts = new int[16];
+        private int[] refEnds = new int[16];
+        private int[] refParents = new int[16];
+        private HighlightInfo[] refHighlights = new HighlightInfo[16];
+        private int refCount;
 
         FieldHyperLinkHighlightImpl() {
         }
 
-        protected HighlightInfo getHighlightInfo(JEditTextArea jEditTextArea, String lineText, int line, int lineStartOffset, int offset) {
-            CodeAST tempAST = codeAST;
-            if (tempAST != null) {
-                int textAreaoffset = jEditTextArea.getOffset(line, offset);
-                Location loc = getLocation(textAreaoffset);
-                VariableRefInfo variableRefInfo = codeAST.getRefAtlocation(loc);
-                if (variableRefInfo != null) {
-                    int startOffset = getOffset(variableRefInfo.getStartLocation());
-                    int endOffset = getOffset(variableRefInfo.getEndLocation());
-                    VariableInfo variableInfo = variableRefInfo.getVariableInfo();
-                    if (variableInfo != null) {
-                        FieldRefInfo refInfo = new FieldRefInfo(variableInfo);
-                        return new HighlightInfo(startOffset, endOffset, refInfo);
+        /**
+         * Forgets the indexed references. This is called when the text is
+         * changed, since the AST's locations no longer match it; no
+         * references are shown until a new AST is set.
+         */
+        void clearRefIndex() {
+            refIndexAST = null;
+            Arrays.fill(refHighlights, 0, refCount, null);
+            refCount = 0;
+        }
+
+        /**
+         * Indexes the variable references of an AST. <i>CodeAST</i> can
+         * only be queried by location, so it is asked once at the start
+         * of every word and symbol of the text.
+         */
+        void buildRefIndex(CodeAST ast) {
+            clearRefIndex();
+            if (ast == null) {
+                return;
+            }
+            refIndexAST = ast;
+            List refs = new ArrayList();
+            Segment segment = new Segment();
+            int lineCount = getLineCount();
+            for (int line = 0; line < lineCount; line++) {
+                getLineText(line, segment);
+                boolean inWord = false;
+                for (int i = 0; i < segment.count; i++) {
+                    char ch = segment.array[segment.offset + i];
+                    boolean wordChar = Character.isJavaIdentifierPart(ch);
+                    if (!Character.isWhitespace(ch) && !(wordChar && inWord)) {
+                        VariableRefInfo variableRefInfo = ast.getRefAtlocation(new Location(line + 1, i + 1));
+                        if (variableRefInfo != null && variableRefInfo.getVariableInfo() != null) {
+                            int startOffset = getOffset(variableRefInfo.getStartLocation());
+                            int endOffset = getOffset(variableRefInfo.getEndLocation());
+                            if (startOffset < endOffset) {
+                                refs.add(new Ref(startOffset, endOffset, variableRefInfo.getVariableInfo()));
+                            }
+                        }
+                    }
+                    inWord = wordChar;
+                }
+            }
+            Collections.sort(refs, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    Ref r1 = (Ref) o1;
+                    Ref r2 = (Ref) o2;
+                    if (r1.start != r2.start) {
+                        return r1.start < r2.start ? -1 : 1;
                     }
+                    // the enclosing reference first
+                    return r1.end > r2.end ? -1 : r1.end < r2.end ? 1 : 0;
+                }
+            });
+            for (int i = 0; i < refs.size(); i++) {
+                Ref ref = (Ref) refs.get(i);
+                int last = refCount - 1;
+                if (last >= 0 && refStarts[last] == ref.start && refEnds[last] == ref.end) {
+                    // found again from another word of the reference
+                    continue;
+                }
+                FieldRefInfo refInfo = new FieldRefInfo(ref.variableInfo);
+                addRef(ref.start, ref.end, new HighlightInfo(ref.start, ref.end, refInfo));
+            }
+        }
+
+        protected HighlightInfo getHighlightInfo(JEditTextArea jEditTextArea, String lineText, int line, int lineStartOffset, int offset) {
+            if (codeAST != null && codeAST == refIndexAST) {
+                int index = findRef(jEditTextArea.getOffset(line, offset));
+                if (index != -1) {
+                    return refHighlights[index];
                 }
                 /*
                 CodeNode node = tempAST.findNodeAtLocation(loc);
@@ -427,9 +508,69 @@ public class FormulaTextArea extends JEditTextArea {
             return null;
         }
 
+        /**
+         * Returns the index of the innermost reference that contains an
+         * offset, or -1 if none does.
+         */
+        private int findRef(int offset) {
+            int low = 0;
+            int high = refCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (refStarts[mid] <= offset) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            // every reference containing the offset is the last one that
+            // starts at or before it or one it is nested in
+            int index = low - 1;
+            while (index >= 0 && offset >= refEnds[index]) {
+                index = refParents[index];
+            }
+            return index;
+        }
+
+        /**
+         * Appends a reference. References must be added in the index
+         * order.
+         */
+        private void addRef(int startOffset, int endOffset, HighlightInfo highlightInfo) {
+            if (refCount == refStarts.length) {
+                int capacity = refCount * 2;
+                refStarts = Arrays.copyOf(refStarts, capacity);
+                refEnds = Arrays.copyOf(refEnds, capacity);
+                refParents = Arrays.copyOf(refParents, capacity);
+                refHighlights = Arrays.copyOf(refHighlights, capacity);
+            }
+            int parent = refCount - 1;
+            while (parent >= 0 && refEnds[parent] <= startOffset) {
+                parent = refParents[parent];
+            }
+            refStarts[refCount] = startOffset;
+            refEnds[refCount] = endOffset;
+            refParents[refCount] = parent;
+            refHighlights[refCount] = highlightInfo;
+            refCount++;
+        }
+
         protected TextRefInfo getTextRefInfo(String word) {
             return null;
         }
+
+        private class Ref {
+            final int start;
+            final int end;
+            final VariableInfo variableInfo;
+
+            Ref(int start, int end, VariableInfo variableInfo) {
+                this.start = start;
+                this.end = end;
+                this.variableInfo = variableInfo;
+            }
+        }
     }
 
 
@@ -52,6 +52,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * jEdit's text area component. It is more suited for editing program
@@ -203,6 +207,11 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     };
     private boolean scrollbarsHidden;
     private boolean useGlobalFind = true;
+    private boolean regexSearch;
+    private boolean highlightAllMatches;
+    private MatchHighlight matchHighlight;
+    private JLabel matchCountLabel;
+    private MatchCountHandler matchCountHandler;
     //CORE-4456 dragActive will be true while mouse is dragged
     boolean dragActive = false;
     //CORE-7708 anchorLocation will get the updated cursor location while expanding/shrinking code selection
@@ -333,7 +342,9 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         painter.setBackground(UIManager.getColor("Window.background"));
         setOpaque(true);
         getPainter().addCustomHighlight(locationHighlight);
-
+        if (Boolean.getBoolean(TextAreaMetrics.ENABLED_PROPERTY)) {
+            setMetricsEnabled(true);
+        }
     }
 
     //Last spoken line is captured in order to avoid repeating the same line
@@ -561,6 +572,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         if (doc != null) {
             int old = getTabSize();
             doc.putProperty(PlainDocument.tabSizeAttribute, size);
+            invalidateLineWidths();
             firePropertyChange("tabSize", old, size);
         }
     }
@@ -660,7 +672,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     public final void blinkCaret() {
         if (caretBlinks) {
             blink = !blink;
-            painter.invalidateSelectedLines();
+            painter.repaintCaret();
         }
         else {
             blink = true;
@@ -730,13 +742,19 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         }
     }
 
+    /**
+     * Returns the width of the widest line in pixels. This is the widest
+     * line painted or measured so far, but at least the width of the line
+     * with the most characters.
+     */
     public int getMaximumLineLength() {
         int maxLengthLine = getMaxLengthLine();
-        int start = getLineStartOffset(maxLengthLine);
-        int end = getLineEndOffset(maxLengthLine);
-        int length = end - start;
-        int width = offsetToX(maxLengthLine, length) + (-horizontalOffset);
-        return width;
+        int width = lineWidths.get(maxLengthLine);
+        if (width < 0) {
+            width = _offsetToX(maxLengthLine, getLineLength(maxLengthLine)) + (-horizontalOffset);
+            lineWidths.set(maxLengthLine, width);
+        }
+        return Math.max(width, lineWidths.getMaxValue());
     }
 
     protected int getColumnWidth() {
@@ -780,7 +798,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         if (vertical != null && firstLine != vertical.getValue()) {
             updateScrollBars();
         }
-        painter.repaint();
+        painter.repaintScrolled();
         fireViewChange();
     }
 
@@ -831,7 +849,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         if (horizontal != null && horizontalOffset != horizontal.getValue()) {
             updateScrollBars();
         }
-        painter.repaint();
+        painter.repaintScrolled();
     }
 
     /**
@@ -858,7 +876,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
 
         if (changed) {
             updateScrollBars();
-            painter.repaint();
+            painter.repaintScrolled();
             //fireViewChange();
         }
 
@@ -964,15 +982,13 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     }
 
     /**
-     * Converts an offset in a line into an x co-ordinate. This is a
-     * slow version that can be used any time.
+     * Converts an offset in a line into an x co-ordinate. This can be
+     * used any time; the token cache is invalidated on document changes.
      *
      * @param line   The line
      * @param offset The offset, from the start of the line
      */
     public final int offsetToX(int line, int offset) {
-        // don't use cached tokens
-        painter.currentLineTokens = null;
         return _offsetToX(line, offset);
     }
 
@@ -985,71 +1001,22 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      * @param offset The offset, from the start of the line
      */
     public int _offsetToX(int line, int offset) {
-        TokenMarker tokenMarker = getTokenMarker();
-
-        /* Use painter's cached info for speed */
-
-        getLineText(line, lineSegment);
-
-        int segmentOffset = lineSegment.offset;
-        int x = horizontalOffset;
-
-        /* If syntax coloring is disabled, do simple translation */
-        if (tokenMarker == null) {
-            //FontMetrics2 fm = painter.getFontMetrics();
-            LogicalFont logicalFont = painter.getLogicalFont();
-            lineSegment.count = offset;
-            return x + SyntaxUtilities.getTabbedTextWidth(lineSegment, logicalFont, x, painter, 0, painter.getSpecialCharPainter());
+        if (metrics != null) {
+            metrics.offsetToXCount++;
         }
-        /* If syntax coloring is enabled, we have to do this because
-         * tokens can vary in width */
-        else {
-            Token tokens;
-            if (painter.currentLineIndex == line
-                    && painter.currentLineTokens != null) {
-                tokens = painter.currentLineTokens;
-            }
-            else {
-                painter.currentLineIndex = line;
-                tokens = painter.currentLineTokens
-                        = tokenMarker.markTokens(SegmentLine.create(lineSegment), line);
-            }
-
-            Toolkit toolkit = painter.getToolkit();
-            //Font defaultFont = painter.getFont();
-            LogicalFont defaultFont = painter.getLogicalFont();
-            SyntaxStyle[] styles = painter.getStyles();
-
-            for (; ; ) {
-                byte id = tokens.id;
-                if (id == Token.END) {
-                    return x;
-                }
-                //FontMetrics2 fm;
-                LogicalFont currentFont;
-                if (id == Token.NULL) {
-                    //fm = painter.getFontMetrics();
-                    currentFont = defaultFont;
-                }
-                else {
-                    //fm = styles[id].getFontMetrics(defaultFont, painter.getInterLineSpacing());
-                    currentFont = styles[id].getStyledLogicalFont(defaultFont);
-                }
-
-                int length = tokens.length;
-
-                if (offset + segmentOffset < lineSegment.offset + length) {
-                    lineSegment.count = offset - (lineSegment.offset - segmentOffset);
-                    return x + SyntaxUtilities.getTabbedTextWidth(lineSegment, currentFont, x, painter, 0, painter.getSpecialCharPainter());
-                }
-                else {
-                    lineSegment.count = length;
-                    x += SyntaxUtilities.getTabbedTextWidth(lineSegment, currentFont, x, painter, 0, painter.getSpecialCharPainter());
-                    lineSegment.offset += length;
-                }
-                tokens = tokens.next;
-            }
+        int charWidth = painter.getMonospaceCharWidth();
+        if (charWidth > 0 && getLineTextKind(line, null) == LineTokenCache.TEXT_PLAIN) {
+            offset = Math.max(0, Math.min(offset, getLineLength(line)));
+            return horizontalOffset + offset * charWidth;
+        }
+        int[] advances = getLineAdvances(line);
+        if (offset < 0) {
+            offset = 0;
         }
+        else if (offset >= advances.length) {
+            offset = advances.length - 1;
+        }
+        return horizontalOffset + advances[offset];
     }
 
     public int getOffsetFromLocation(int line, int column) {
@@ -1063,114 +1030,151 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      * @param x    The x co-ordinate
      */
     public int xToOffset(int line, int x) {
-        TokenMarker tokenMarker = getTokenMarker();
-
-        /* Use painter's cached info for speed */
-        //FontMetrics2 fm = painter.getFontMetrics();
-        LogicalFont defaultLogicalFont = painter.getLogicalFont();
-        LogicalFont currentFont = defaultLogicalFont;
-
-        getLineText(line, lineSegment);
-
-        char[] segmentArray = lineSegment.array;
-        int segmentOffset = lineSegment.offset;
-        int segmentCount = lineSegment.count;
-
-        int width = horizontalOffset;
-        SyntaxUtilities.SpecialCharPainter specialCharPainter = painter.getSpecialCharPainter();
-        if (tokenMarker == null) {
-            for (int i = 0; i < segmentCount; i++) {
-                char c = segmentArray[i + segmentOffset];
-                int charWidth;
-                if (c == '\t') {
-                    charWidth = (int) painter.nextTabStop(width, i) - width;
-                }
-                else {
-                    charWidth = SyntaxUtilities.getCharWidth(c, currentFont, specialCharPainter);
-                }
-
-                if (painter.isBlockCaretEnabled()) {
-                    if (x - charWidth <= width) {
-                        return i;
-                    }
-                }
-                else {
-                    if (x - charWidth / 2 <= width) {
-                        return i;
-                    }
-                }
+        if (metrics != null) {
+            metrics.xToOffsetCount++;
+        }
+        boolean blockCaret = painter.isBlockCaretEnabled();
+        x -= horizontalOffset;
 
-                width += charWidth;
+        int charWidth = painter.getMonospaceCharWidth();
+        if (charWidth > 0 && getLineTextKind(line, null) == LineTokenCache.TEXT_PLAIN) {
+            int limit = blockCaret ? x - charWidth : x - charWidth / 2;
+            if (limit <= 0) {
+                return 0;
             }
-
-            return segmentCount;
+            return Math.min(getLineLength(line), (limit + charWidth - 1) / charWidth);
         }
-        else {
-            Token tokens;
-            if (painter.currentLineIndex == line && painter
-                    .currentLineTokens != null) {
-                tokens = painter.currentLineTokens;
+
+        int[] advances = getLineAdvances(line);
+
+        // find the first character whose left edge is past x, less
+        // all (block caret) or half of the character's width
+        int low = 0;
+        int high = advances.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int charWidth = advances[mid + 1] - advances[mid];
+            int limit = blockCaret ? x - charWidth : x - charWidth / 2;
+            if (limit <= advances[mid]) {
+                high = mid;
             }
             else {
-                painter.currentLineIndex = line;
-                painter.currentLineTokens = tokenMarker.markTokens(SegmentLine.create(lineSegment), line);
-                tokens = painter.currentLineTokens;
+                low = mid + 1;
             }
+        }
+        return low;
+    }
 
-            int offset = 0;
-            Toolkit toolkit = painter.getToolkit();
-            //Font defaultFont = painter.getFont();
-            //LogicalFont defaultFont = painter.getLogicalFont();
-            SyntaxStyle[] styles = painter.getStyles();
+    /**
+     * Returns the x positions of the characters of a line, relative to
+     * the horizontal offset. The array has one more element than the
+     * line has characters; the last element is the width of the line.
+     * The positions are kept in the painter's token cache until the
+     * line changes.
+     *
+     * @param line The line
+     */
+    int[] getLineAdvances(int line) {
+        int[] advances = painter.tokenCache.getAdvances(line);
+        if (advances == null) {
+            getLineText(line, lineSegment);
+            Token tokens = null;
+            TokenMarker tokenMarker = getTokenMarker();
+            if (tokenMarker != null && painter.syntaxHighlight) {
+                tokens = painter.tokenCache.getTokens(tokenMarker, lineSegment, line);
+            }
+            boolean plainText = getLineTextKind(line, lineSegment) != LineTokenCache.TEXT_OTHER;
+            advances = measureLine(lineSegment, tokens, plainText);
+            painter.tokenCache.setAdvances(line, advances);
+        }
+        return advances;
+    }
 
-            for (; ; ) {
-                byte id = tokens.id;
-                if (id == Token.END) {
-                    return offset;
-                }
+    /**
+     * Returns the kind of text of a line, one of the <code>TEXT_</code>
+     * constants of <code>LineTokenCache</code>. The kind is kept in the
+     * token cache until the line changes.
+     *
+     * @param line     The line
+     * @param lineText The text of the line, or null to get it here
+     */
+    private byte getLineTextKind(int line, Segment lineText) {
+        byte textKind = painter.tokenCache.getTextKind(line);
+        if (textKind == LineTokenCache.TEXT_UNKNOWN) {
+            if (lineText == null) {
+                lineText = lineSegment;
+                getLineText(line, lineText);
+            }
+            textKind = getTextKind(lineText);
+            painter.tokenCache.setTextKind(line, textKind);
+        }
+        return textKind;
+    }
+
+    private int[] measureLine(Segment segment, Token tokens, boolean plainText) {
+        char[] array = segment.array;
+        int count = segment.count;
+        int[] advances = new int[count + 1];
 
-                if (id == Token.NULL) {
-                    currentFont = painter.getLogicalFont();
+        int charWidth = painter.getMonospaceCharWidth();
+        if (charWidth > 0 && plainText) {
+            int width = 0;
+            for (int i = 0; i < count; i++) {
+                advances[i] = width;
+                if (array[segment.offset + i] == '\t') {
+                    width = (int) painter.nextTabStop(width + horizontalOffset, i) - horizontalOffset;
                 }
                 else {
-                    currentFont = styles[id].getStyledLogicalFont(defaultLogicalFont);
-                }
-
-                int length = tokens.length;
-
-                for (int i = 0; i < length; i++) {
-                    int charOffset = segmentOffset + offset + i;
-                    if (charOffset >= segmentArray.length) {
-                        break;
-                    }
-                    char c = segmentArray[charOffset];
-                    int charWidth;
-                    if (c == '\t') {
-                        charWidth = (int) painter.nextTabStop(width, offset + i) - width;
-                    }
-                    else {
-                        charWidth = SyntaxUtilities.getCharWidth(c, currentFont, specialCharPainter);
-                    }
-                    //charWidth = fm.charWidth(c);
-
-                    if (painter.isBlockCaretEnabled()) {
-                        if (x - charWidth <= width) {
-                            return offset + i;
-                        }
-                    }
-                    else {
-                        if (x - charWidth / 2 <= width) {
-                            return offset + i;
-                        }
-                    }
-
                     width += charWidth;
                 }
-
-                offset += length;
+            }
+            advances[count] = width;
+            return advances;
+        }
+
+        byte id = Token.NULL;
+        // characters left in the current token
+        int tokenLeft = tokens == null ? count : 0;
+        int width = 0;
+        for (int i = 0; i < count; i++) {
+            while (tokenLeft == 0 && tokens != null && tokens.id != Token.END) {
+                id = tokens.id;
+                tokenLeft = tokens.length;
                 tokens = tokens.next;
             }
+            advances[i] = width;
+            char c = array[segment.offset + i];
+            if (c == '\t') {
+                width = (int) painter.nextTabStop(width + horizontalOffset, i) - horizontalOffset;
+            }
+            else {
+                width += painter.getCharWidth(c, id);
+            }
+            tokenLeft--;
+        }
+        advances[count] = width;
+        return advances;
+    }
+
+    /**
+     * Returns whether a line has only printable ASCII characters, possibly
+     * with tabs. Such lines can be measured by counting columns when the
+     * font is fixed pitch.
+     */
+    private static byte getTextKind(Segment segment) {
+        char[] array = segment.array;
+        int end = segment.offset + segment.count;
+        byte textKind = LineTokenCache.TEXT_PLAIN;
+        for (int i = segment.offset; i < end; i++) {
+            char c = array[i];
+            if (c == '\t') {
+                textKind = LineTokenCache.TEXT_PLAIN_TABS;
+            }
+            else if (c < ' ' || c > '~') {
+                return LineTokenCache.TEXT_OTHER;
+            }
         }
+        return textKind;
     }
 
     /**
@@ -1209,6 +1213,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         if (this.document == document) {
             return;
         }
+        cancelTextLoad();
         if (this.document != null) {
             this.document.removeDocumentListener(documentHandler);
             if (undoManager != null) {
@@ -1217,6 +1222,9 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         }
 
         this.document = document;
+        painter.tokenCache.clear();
+        lineLengths.clear();
+        lineWidths.clear();
 
         document.addDocumentListener(documentHandler);
         undoManager = new UndoManager();
@@ -1225,6 +1233,9 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         select(0, 0);
         updateScrollBars();
         painter.repaint();
+        if (matchHighlight != null) {
+            matchHighlight.rebuild();
+        }
     }
 
     public void undo() {
@@ -1265,6 +1276,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      */
     public final void setTokenMarker(TokenMarker tokenMarker) {
         document.setTokenMarker(tokenMarker);
+        painter.tokenCache.clear();
         if (tokenMarker != null) {
             SyntaxStyle[] syntaxStyles = tokenMarker.getSyntaxStyles();
             fixStyles(syntaxStyles);
@@ -1351,30 +1363,116 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     }
 
     public int getMaxColumn() {
-        int maxLength = 0;
-        Element rootElement = document.getDefaultRootElement();
-        int elementCount = rootElement.getElementCount();
-        for (int i = 0; i < elementCount; ++i) {
-            Element elm = rootElement.getElement(i);
-            int length = elm.getEndOffset() - elm.getStartOffset();
-            maxLength = Math.max(maxLength, length);
-        }
-        return maxLength;
+        checkLineIndexes();
+        return lineLengths.getMaxValue();
     }
 
     public int getMaxLengthLine() {
-        int maxLength = 0;
-        int maxLengthLine = 0;
-        Element rootElement = document.getDefaultRootElement();
-        for (int i = 0; i < rootElement.getElementCount(); ++i) {
-            Element elm = rootElement.getElement(i);
-            int length = elm.getEndOffset() - elm.getStartOffset();
-            if (maxLength < length) {
-                maxLength = length;
-                maxLengthLine = i;
+        checkLineIndexes();
+        return lineLengths.getMaxLine();
+    }
+
+    /**
+     * Updates the line length and line width indexes from a document
+     * event. Only the lines that were changed, added or removed are
+     * touched; the widths of those lines are unknown until they are
+     * painted or measured again.
+     */
+    private void updateLineIndexes(DocumentEvent evt, DocumentEvent.ElementChange ch) {
+        Element map = document.getDefaultRootElement();
+        if (lineLengths.size() == 0) {
+            checkLineIndexes();
+        }
+        else if (ch == null) {
+            int line = map.getElementIndex(evt.getOffset());
+            if (line < lineLengths.size()) {
+                lineLengths.set(line, getElementLength(map.getElement(line)));
+            }
+            if (line < lineWidths.size()) {
+                lineWidths.set(line, -1);
+            }
+        }
+        else {
+            int index = ch.getIndex();
+            Element[] added = ch.getChildrenAdded();
+            int removed = ch.getChildrenRemoved().length;
+            lineLengths.remove(index, Math.min(removed, lineLengths.size() - index));
+            lineWidths.remove(index, Math.min(removed, lineWidths.size() - index));
+            int[] lengths = new int[added.length];
+            for (int i = 0; i < added.length; i++) {
+                lengths[i] = getElementLength(added[i]);
+            }
+            lineLengths.insert(index, lengths, lengths.length);
+            if (index <= lineWidths.size()) {
+                Arrays.fill(lengths, -1);
+                lineWidths.insert(index, lengths, lengths.length);
             }
         }
-        return maxLengthLine;
+        checkLineIndexes();
+    }
+
+    /**
+     * Rebuilds the line indexes if they are out of step with the
+     * document, for example before the first document event.
+     */
+    private void checkLineIndexes() {
+        Element map = document.getDefaultRootElement();
+        int lineCount = map.getElementCount();
+        if (lineLengths.size() != lineCount) {
+            int[] lengths = new int[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                lengths[i] = getElementLength(map.getElement(i));
+            }
+            lineLengths.setAll(lengths, lineCount);
+        }
+        if (lineWidths.size() != lineCount) {
+            int[] widths = new int[lineCount];
+            Arrays.fill(widths, -1);
+            lineWidths.setAll(widths, lineCount);
+        }
+    }
+
+    /**
+     * Called by the painter with the width of a line it has painted.
+     * Schedules a scroll bar update if the line is wider than any line
+     * measured so far.
+     *
+     * @param line  The line
+     * @param width The width of the line in pixels
+     */
+    void lineMeasured(int line, int width) {
+        checkLineIndexes();
+        if (line < 0 || line >= lineWidths.size() || lineWidths.get(line) == width) {
+            return;
+        }
+        int maxWidth = lineWidths.getMaxValue();
+        lineWidths.set(line, width);
+        if (width > maxWidth && !scrollBarUpdatePending) {
+            scrollBarUpdatePending = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    scrollBarUpdatePending = false;
+                    updateScrollBars();
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets the measured line widths. This should be called when the
+     * fonts, styles or tab size change.
+     */
+    void invalidateLineWidths() {
+        lineWidths.clear();
+        // called by the painter's constructor before it is assigned
+        if (painter == null) {
+            return;
+        }
+        painter.tokenCache.clearAdvances();
+    }
+
+    private static int getElementLength(Element elm) {
+        return elm.getEndOffset() - elm.getStartOffset();
     }
 
 
@@ -1430,6 +1528,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      * Sets the entire text of this text area.
      */
     public void setText(String text) {
+        cancelTextLoad();
         try {
             undoManager.discardAllEdits();
             document.beginCompoundEdit();
@@ -1446,6 +1545,55 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         undoManager.discardAllEdits();
     }
 
+    /**
+     * Sets the entire text of this text area without blocking the event
+     * dispatch thread. The first screen is shown right away and the rest of
+     * the text is appended in chunks of at most 64K characters, cut at line
+     * ends where possible, while the text area stays scrollable. The
+     * chunks are not recorded for undo. Editing is disabled until loading
+     * completes, and a
+     * <code>setEditable()</code> call made meanwhile takes effect then; calling
+     * <code>setText()</code> or <code>setTextAsync()</code> again cancels
+     * a load in progress.
+     *
+     * @param text The new text
+     * @return A future that completes once the whole text is in the document
+     */
+    public Future<?> setTextAsync(String text) {
+        cancelTextLoad();
+        setText("");
+        int firstLines = Math.max(visibleLines, DEFAULT_LOAD_FIRST_LINES) + 1;
+        boolean wasEditable = editable;
+        setEditable(false);
+        document.removeUndoableEditListener(undoManager);
+        textLoader = new TextLoader(text, firstLines, wasEditable);
+        textLoader.execute();
+        return textLoader;
+    }
+
+    /**
+     * Returns true if a text set with <code>setTextAsync()</code> is
+     * still being loaded.
+     */
+    public boolean isLoadingText() {
+        return textLoader != null;
+    }
+
+    private void cancelTextLoad() {
+        TextLoader loader = textLoader;
+        if (loader != null) {
+            loader.cancel(true);
+            endTextLoad(loader);
+        }
+    }
+
+    private void endTextLoad(TextLoader loader) {
+        textLoader = null;
+        document.addUndoableEditListener(undoManager);
+        undoManager.discardAllEdits();
+        setEditable(loader.editable);
+    }
+
     public void discardAllEdits() {
         undoManager.discardAllEdits();
     }
@@ -1746,6 +1894,22 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
             int newStartLine = getLineOfOffset(newStart);
             int newEndLine = getLineOfOffset(newEnd);
 
+            if (batchDepth > 0) {
+                // the view is brought up to date by endBatch()
+                document.addUndoableEdit(new CaretUndo(selectionStart, selectionEnd));
+                selectionStart = newStart;
+                selectionEnd = newEnd;
+                selectionStartLine = newStartLine;
+                selectionEndLine = newEndLine;
+                biasLeft = newBias;
+                batchCaretChanged = true;
+                if (selectionStart == selectionEnd) {
+                    rectSelect = false;
+                }
+                magicCaret = -1;
+                return;
+            }
+
             if (painter.isBracketHighlightEnabled()) {
                 if (bracketLine != -1) {
                     painter.invalidateLine(bracketLine);
@@ -1769,11 +1933,16 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
 
             fireCaretEvent();
         }
+        else if (batchDepth > 0) {
+            return;
+        }
 
         // When the user is typing, etc, we don't want the caret
         // to blink
         blink = true;
-        caretTimer.restart();
+        if (caretTimer.isRunning()) {
+            caretTimer.restart();
+        }
 
         // Disable rectangle select if selection start = selection end
         if (selectionStart == selectionEnd) {
@@ -2087,6 +2256,75 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         select(start, end);
     }
 
+    /**
+     * Starts a batch of edits. Until the matching <code>endBatch()</code>
+     * the document changes are merged into one compound edit and the
+     * caret, scroll bar and repaint updates are deferred, so that bulk
+     * changes update the view once instead of once per edit. Batches may
+     * be nested.
+     */
+    public void beginBatch() {
+        if (batchDepth++ == 0) {
+            batchChanged = false;
+            batchCaretChanged = false;
+            batchFirstLine = firstLine;
+            batchSelectionStartLine = selectionStartLine;
+            batchSelectionEndLine = selectionEndLine;
+            document.beginCompoundEdit();
+        }
+    }
+
+    /**
+     * Ends a batch started with <code>beginBatch()</code>. Ending the
+     * outermost batch applies the deferred view updates.
+     */
+    public void endBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        }
+        if (--batchDepth > 0) {
+            return;
+        }
+        document.endCompoundEdit();
+        if (firstLine != batchFirstLine) {
+            // lines were added or removed above the view; scroll through
+            // setFirstLine() so the scroll bar and view listeners follow
+            int newFirstLine = firstLine;
+            firstLine = batchFirstLine;
+            setFirstLine(newFirstLine);
+        }
+        if (batchChanged) {
+            updateScrollBars();
+            painter.repaint();
+        }
+        if (batchCaretChanged) {
+            if (painter.isBracketHighlightEnabled()) {
+                updateBracketHighlight(selectionEnd);
+                if (!batchChanged) {
+                    painter.repaint();
+                }
+            }
+            else if (!batchChanged) {
+                painter.invalidateLineRange(batchSelectionStartLine, batchSelectionEndLine);
+                painter.invalidateLineRange(selectionStartLine, selectionEndLine);
+            }
+            fireCaretEvent();
+            blink = true;
+            if (caretTimer.isRunning()) {
+                caretTimer.restart();
+            }
+            scrollToCaret();
+        }
+    }
+
+    /**
+     * Returns true if a batch started with <code>beginBatch()</code> is
+     * in progress.
+     */
+    public boolean isBatchInProgress() {
+        return batchDepth > 0;
+    }
+
     public void commentLine(int line) {
         String lineText = getLineText(line);
         int lineOffset = getLineStartOffset(line);
@@ -2107,8 +2345,14 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
             commentLine(getCaretLine());
         }
         else {
-            for (int currentLine = selectionStartLine; currentLine <= selectionEndLine; currentLine++) {
-                commentLine(currentLine);
+            beginBatch();
+            try {
+                for (int currentLine = selectionStartLine; currentLine <= selectionEndLine; currentLine++) {
+                    commentLine(currentLine);
+                }
+            }
+            finally {
+                endBatch();
             }
         }
     }
@@ -2120,8 +2364,14 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     }
 
     public void indentLinesBetween(int startLine, int endLine) {
-        for (int i = startLine; i <= endLine; i++) {
-            indentLine(i);
+        beginBatch();
+        try {
+            for (int i = startLine; i <= endLine; i++) {
+                indentLine(i);
+            }
+        }
+        finally {
+            endBatch();
         }
     }
 
@@ -2166,7 +2416,25 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      *                 false otherwise
      */
     public final void setEditable(boolean editable) {
-        this.editable = editable;
+        if (textLoader != null) {
+            // the text stays read only until it has been loaded
+            textLoader.editable = editable;
+            return;
+        }
+        if (this.editable != editable) {
+            this.editable = editable;
+            // the background depends on whether the text can be edited
+            if (painter != null) {
+                painter.repaint();
+            }
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        if (painter != null) {
+            painter.repaint();
+        }
     }
 
     public void addContextAction(Action action) {
@@ -2314,7 +2582,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     void insertTabsInLines(int startLine, int endLine) {
         SyntaxDocument doc = getSyntaxDocument();
         if (doc != null) {
-            doc.beginCompoundEdit();
+            beginBatch();
             try {
                 for (int i = startLine; i <= endLine; i++) {
                     int offset = getLineStartOffset(i);
@@ -2326,7 +2594,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
                 }
             }
             finally {
-                doc.endCompoundEdit();
+                endBatch();
             }
         }
     }
@@ -2353,7 +2621,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     void deleteTabsInLines(int startLine, int endLine) {
         SyntaxDocument doc = getSyntaxDocument();
         if (doc != null) {
-            doc.beginCompoundEdit();
+            beginBatch();
             try {
                 for (int i = startLine; i <= endLine; i++) {
                     int offset = getLineStartOffset(i);
@@ -2375,7 +2643,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
                 }
             } catch (BadLocationException e) {
             } finally {
-                doc.endCompoundEdit();
+                endBatch();
             }
         }
     }
@@ -2533,6 +2801,13 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         return TextComponentUtils.getWordLeft(this, offset);
     }
 
+    public void addNotify() {
+        super.addNotify();
+        if (metrics != null) {
+            metrics.register();
+        }
+    }
+
     /**
      * Called by the AWT when this component is removed from it's parent.
      * This stops clears the currently focused component.
@@ -2542,6 +2817,39 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         if (getFocusedComponent() == this) {
             setFocusedComponent(null);
         }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+    }
+
+    /**
+     * Returns the paint metrics of this text area, or null if they are
+     * not enabled.
+     */
+    public TextAreaMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Turns the paint metrics on or off. While the text area is
+     * displayed, enabled metrics are registered as an MBean.
+     *
+     * @param enabled True to collect metrics
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (enabled == (metrics != null)) {
+            return;
+        }
+        if (enabled) {
+            metrics = new TextAreaMetrics(this);
+            if (isDisplayable()) {
+                metrics.register();
+            }
+        }
+        else {
+            metrics.unregister();
+            metrics = null;
+        }
     }
 
     /**
@@ -2551,6 +2859,20 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
      */
     //public void processKeyEvent(KeyEvent evt) {
     protected void processComponentKeyEvent(KeyEvent evt) {
+        TextAreaMetrics metrics = this.metrics;
+        // releasing the key typed last must not end its timing
+        if (metrics == null || evt.getID() == KeyEvent.KEY_RELEASED) {
+            handleKeyEvent(evt);
+        }
+        else {
+            metrics.keyEventStarted(evt);
+            long start = System.nanoTime();
+            handleKeyEvent(evt);
+            metrics.keyEventFinished(System.nanoTime() - start);
+        }
+    }
+
+    private void handleKeyEvent(KeyEvent evt) {
         int keycode = evt.getKeyCode();
         int modifier = evt.getModifiers();
         if (inputHandler == null) {
@@ -2596,6 +2918,8 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     //protected JPopupMenu popup;
     java.util.List actions = new ArrayList();
     static FindInfo findInfo = new FindInfo();
+    // compiled search patterns by search text, indexed by case and word options
+    private static final Map<String, Pattern[]> patternCache = new HashMap<String, Pattern[]>();
     protected EventListenerList listenerList;
     protected MutableCaretEvent caretEvent;
 
@@ -2619,6 +2943,10 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     protected SyntaxDocument document;
     protected DocumentHandler documentHandler;
     private UndoManager undoManager;
+    private TextLoader textLoader;
+    private TextSearcher searcher;
+    private DocumentCharSequence documentChars;
+    private Matcher searchMatcher;
 
     protected Segment lineSegment;
 
@@ -2635,11 +2963,31 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     protected boolean overwrite;
     protected boolean rectSelect;
 
+    private final LineMaxIndex lineLengths = new LineMaxIndex();
+    private final LineMaxIndex lineWidths = new LineMaxIndex();
+    private boolean scrollBarUpdatePending;
+    private int batchDepth;
+    private boolean batchChanged;
+    private boolean batchCaretChanged;
+    // the view when the batch began
+    private int batchFirstLine;
+    private int batchSelectionStartLine;
+    private int batchSelectionEndLine;
+    // null unless metrics are enabled
+    TextAreaMetrics metrics;
+
     protected void fireCaretEvent() {
         Object[] listeners = listenerList.getListenerList();
         for (int i = listeners.length - 2; i >= 0; i--) {
             if (listeners[i] == CaretListener.class) {
-                ((CaretListener) listeners[i + 1]).caretUpdate(caretEvent);
+                if (metrics == null) {
+                    ((CaretListener) listeners[i + 1]).caretUpdate(caretEvent);
+                }
+                else {
+                    long start = System.nanoTime();
+                    ((CaretListener) listeners[i + 1]).caretUpdate(caretEvent);
+                    metrics.handlerFinished(listeners[i + 1].getClass().getName(), System.nanoTime() - start);
+                }
             }
         }
     }
@@ -2667,6 +3015,10 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
 
     protected void documentChanged(DocumentEvent evt) {
         DocumentEvent.ElementChange ch = evt.getChange(document.getDefaultRootElement());
+        updateLineIndexes(evt, ch);
+        if (matchHighlight != null) {
+            matchHighlight.documentChanged(evt);
+        }
 
         int count;
         if (ch == null) {
@@ -2678,15 +3030,41 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         }
 
         int line = getLineOfOffset(evt.getOffset());
+        if (batchDepth > 0) {
+            if (count == 0 && ch == null) {
+                painter.tokenCache.invalidate(line);
+            }
+            else if (count == 0) {
+                painter.tokenCache.invalidateRange(line, ch.getIndex() + ch.getChildrenAdded().length);
+            }
+            else {
+                painter.tokenCache.invalidateFrom(line);
+                if (line < firstLine) {
+                    firstLine = Math.max(0, firstLine + count);
+                }
+            }
+            batchChanged = true;
+            return;
+        }
         if (count == 0) {
+            if (ch == null) {
+                painter.tokenCache.invalidate(line);
+            }
+            else {
+                painter.tokenCache.invalidateRange(line, ch.getIndex() + ch.getChildrenAdded().length);
+            }
             painter.invalidateLine(line);
         }
         // do magic stuff
         else if (line < firstLine) {
+            painter.tokenCache.invalidateFrom(line);
             setFirstLine(firstLine + count);
+            // the visible lines stay where they are, don't scroll them
+            painter.repaint();
         }
         // end of magic stuff
         else {
+            painter.tokenCache.invalidateFrom(line);
             painter.invalidateLineRange(line, firstLine + visibleLines);
         }
         updateScrollBars();
@@ -2806,20 +3184,18 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
                     FindInfo.addMRUList(findInfo.getReplaceList(), findInfo.getReplaceText());
                     writeGlobalFind();
                     if (find(findInfo, searchOriginalStart, true)) {
+                        // expand the replace text once so that a bad group
+                        // reference is reported before anything is replaced
+                        getReplacement(findInfo);
                         while (true) {
                             int ret = showReplaceOptionDialog();
                             if (ret == 0) { //replace
-                                this.replaceSelection(findInfo.getReplaceText());
+                                this.replaceSelection(getReplacement(findInfo));
                             }
                             else if (ret == 1) { // skip
                             }
                             else if (ret == 2) { // replace all
-                                while (true) {
-                                    this.replaceSelection(findInfo.getReplaceText());
-                                    if (!find(findInfo, searchOriginalStart, false)) {
-                                        break;
-                                    }
-                                }
+                                replaceAll(findInfo);
                                 break;
                             }
                             else if (ret == 3) { //cancel
@@ -2836,12 +3212,186 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
                 }
             }
         }
+        catch (PatternSyntaxException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Invalid Regular Expression", JOptionPane.ERROR_MESSAGE);
+        }
+        catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Invalid Replacement", JOptionPane.ERROR_MESSAGE);
+        }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
 
 
+    /**
+     * Replaces every occurrence of the search text in the document. The
+     * text is scanned once and the matches are then replaced from the last
+     * to the first in a batch, so the whole operation is one undoable edit
+     * and one repaint, and the text between the matches is left alone.
+     * <p/>
+     * For a regular expression search every replacement is expanded
+     * before the first one is made, so nothing is replaced if the replace
+     * text is invalid.
+     *
+     * @return The number of occurrences replaced
+     * @throws PatternSyntaxException   if the search text is not a valid
+     *                                  regular expression
+     * @throws IllegalArgumentException if the replace text refers to a
+     *                                  group the regular expression does not have
+     */
+    public int replaceAll(FindInfo findInfo) {
+        String searchText = findInfo.getSearchText();
+        if (searchText == null || searchText.length() == 0) {
+            return 0;
+        }
+        String replaceText = findInfo.getReplaceText();
+        if (replaceText == null) {
+            replaceText = "";
+        }
+        if (regexSearch) {
+            return replaceAllMatches(findInfo, replaceText);
+        }
+        TextSearcher searcher = getSearcher(searchText, findInfo.isMatchCase(), findInfo.isMatchWord());
+        CharSequence text = getDocumentChars();
+        MatchHighlight.Matches matches = new MatchHighlight.Matches();
+        MatchHighlight.scan(text, 0, text.length(), searcher, null, matches);
+        String[] replacements = new String[matches.count];
+        Arrays.fill(replacements, replaceText);
+        return replaceMatches(matches, replacements);
+    }
+
+    private int replaceAllMatches(FindInfo findInfo, String replaceText) {
+        CharSequence text = getDocumentChars();
+        Matcher matcher = getMatcher(findInfo.getSearchText(), findInfo.isMatchCase(), findInfo.isMatchWord(), text, 0, text.length());
+        MatchHighlight.Matches matches = new MatchHighlight.Matches();
+        List<String> replacements = new ArrayList<String>();
+        StringBuilder buf = new StringBuilder();
+        while (matcher.find()) {
+            matches.add(matcher.start(), matcher.end());
+            buf.setLength(0);
+            appendReplacement(buf, matcher, replaceText);
+            replacements.add(buf.toString());
+        }
+        return replaceMatches(matches, replacements.toArray(new String[replacements.size()]));
+    }
+
+    /**
+     * Replaces the matches from the last to the first, so that the offsets
+     * of the matches still to be replaced stay valid, and leaves the caret
+     * after the last replacement.
+     */
+    private int replaceMatches(MatchHighlight.Matches matches, String[] replacements) {
+        int count = matches.count;
+        if (count == 0) {
+            return 0;
+        }
+        int shift = 0;
+        for (int i = 0; i < count - 1; i++) {
+            shift += replacements[i].length() - (matches.ends[i] - matches.starts[i]);
+        }
+        int caret = matches.starts[count - 1] + shift + replacements[count - 1].length();
+
+        beginBatch();
+        try {
+            for (int i = count - 1; i >= 0; i--) {
+                int start = matches.starts[i];
+                if (matches.ends[i] > start) {
+                    document.remove(start, matches.ends[i] - start);
+                }
+                if (replacements[i].length() > 0) {
+                    document.insertString(start, replacements[i], null);
+                }
+            }
+            select(caret, caret);
+        }
+        catch (BadLocationException bl) {
+            bl.printStackTrace();
+        }
+        finally {
+            endBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the text that replaces the current selection. For a regular
+     * expression search the group references in the replace text are
+     * expanded against the match at the selection.
+     */
+    private String getReplacement(FindInfo findInfo) {
+        String replaceText = findInfo.getReplaceText();
+        if (!regexSearch || replaceText == null) {
+            return replaceText;
+        }
+        int start = getSelectionStart();
+        int end = getSelectionEnd();
+        CharSequence text = getDocumentChars();
+        Matcher matcher = getMatcher(findInfo.getSearchText(), findInfo.isMatchCase(), findInfo.isMatchWord(), text, start, text.length());
+        if (!matcher.lookingAt() || matcher.end() != end) {
+            return replaceText;
+        }
+        StringBuilder buf = new StringBuilder();
+        appendReplacement(buf, matcher, replaceText);
+        return buf.toString();
+    }
+
+    /**
+     * Appends the replacement for the current match, expanding
+     * <code>$n</code> and <code>${name}</code> group references and
+     * backslash escapes like <code>Matcher.appendReplacement()</code>. A
+     * <code>$</code> that does not start a group reference is kept as is.
+     *
+     * @throws IllegalArgumentException if a group reference is not closed
+     *                                  or names a group the pattern does not have
+     */
+    private static void appendReplacement(StringBuilder buf, Matcher matcher, String replacement) {
+        int length = replacement.length();
+        for (int i = 0; i < length; i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                buf.append(replacement.charAt(++i));
+            }
+            else if (c == '$' && i + 1 < length) {
+                String group;
+                if (replacement.charAt(i + 1) == '{') {
+                    int close = replacement.indexOf('}', i + 2);
+                    if (close == -1) {
+                        throw new IllegalArgumentException("Unclosed group name in replacement: " + replacement);
+                    }
+                    group = matcher.group(replacement.substring(i + 2, close));
+                    i = close;
+                }
+                else if (Character.isDigit(replacement.charAt(i + 1))) {
+                    int number = replacement.charAt(++i) - '0';
+                    // take more digits while they still name a group
+                    while (i + 1 < length && Character.isDigit(replacement.charAt(i + 1))) {
+                        int next = number * 10 + replacement.charAt(i + 1) - '0';
+                        if (next > matcher.groupCount()) {
+                            break;
+                        }
+                        number = next;
+                        i++;
+                    }
+                    if (number > matcher.groupCount()) {
+                        throw new IllegalArgumentException("No group " + number + " in " + matcher.pattern());
+                    }
+                    group = matcher.group(number);
+                }
+                else {
+                    buf.append(c);
+                    continue;
+                }
+                if (group != null) {
+                    buf.append(group);
+                }
+            }
+            else {
+                buf.append(c);
+            }
+        }
+    }
+
     private int showReplaceOptionDialog() {
         class ReplaceOptionPanel extends DialogPanel {
             int retValue;
@@ -2925,6 +3475,9 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         boolean exact = findInfo.isMatchWord();
 
         try {
+            if (highlightAllMatches) {
+                updateMatchHighlight(searchText, caseSensitive, exact);
+            }
             if (searchOriginalStart <= start && searchComponent(searchText, start, end, caseSensitive, exact)) {
                 return true;
             }
@@ -2935,6 +3488,10 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
                 JOptionPane.showMessageDialog(this, "No occurrence of '" + searchText + "' found", "No Matches", JOptionPane.INFORMATION_MESSAGE);
             return false;
         }
+        catch (PatternSyntaxException e) {
+            if (warnNoMatch)
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Invalid Regular Expression", JOptionPane.ERROR_MESSAGE);
+        }
         catch (BadLocationException e) {
             e.printStackTrace();
         }
@@ -2942,39 +3499,278 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     }
 
     private boolean searchComponent(String searchText, int start, int end, boolean matchCase, boolean exact) throws BadLocationException {
-        String findIn = this.getText(start, end - start);
-        int index = getMatch(findIn, searchText, matchCase, exact);
-        if (index != -1) {
-            int newSelectStart = start + index;
-            int newSelectEnd = newSelectStart + searchText.length();
-            if (this.getSelectionStart() != newSelectStart || this.getSelectionEnd() != newSelectEnd) {
-                this.select(newSelectStart, newSelectEnd);
-                this.requestFocus();
-                return true;
+        int newSelectStart;
+        int newSelectEnd;
+        if (regexSearch) {
+            Matcher matcher = getMatcher(searchText, matchCase, exact, getDocumentChars(), start, end);
+            // an empty match can't be selected, look for the next one
+            do {
+                if (!matcher.find()) {
+                    return false;
+                }
+            } while (matcher.start() == matcher.end());
+            newSelectStart = matcher.start();
+            newSelectEnd = matcher.end();
+        }
+        else {
+            int index = getSearcher(searchText, matchCase, exact).indexOf(getDocumentChars(), start, end);
+            if (index == -1) {
+                return false;
             }
+            newSelectStart = index;
+            newSelectEnd = newSelectStart + searchText.length();
+        }
+        if (this.getSelectionStart() != newSelectStart || this.getSelectionEnd() != newSelectEnd) {
+            this.select(newSelectStart, newSelectEnd);
+            this.requestFocus();
+            return true;
         }
         return false;
     }
 
-    private static int getMatch(String findIn, String searchText, boolean matchCase, boolean exact) {
-        if (!matchCase) {
-            searchText = searchText.toLowerCase();
-            findIn = findIn.toLowerCase();
+    /**
+     * Returns a matcher for the regular expression over the given range of
+     * the text. The range bounds are transparent, so look arounds and word
+     * boundaries see the text around the range.
+     */
+    private Matcher getMatcher(String regex, boolean matchCase, boolean exact, CharSequence text, int start, int end) {
+        Pattern pattern = getPattern(regex, matchCase, exact);
+        if (searchMatcher == null || searchMatcher.pattern() != pattern) {
+            searchMatcher = pattern.matcher(text);
         }
-        int index = findIn.indexOf(searchText);
-        if (exact) {
-            int endIndex = index + searchText.length();
-            if (index != -1 && (endIndex == findIn.length() || !Character.isJavaIdentifierPart(findIn.charAt(endIndex)))) {
-                if (index == 0 || !Character.isJavaIdentifierPart(findIn.charAt(index - 1))) {
-                    return index;
-                }
+        else {
+            searchMatcher.reset(text);
+        }
+        searchMatcher.region(start, end);
+        searchMatcher.useTransparentBounds(true);
+        searchMatcher.useAnchoringBounds(false);
+        return searchMatcher;
+    }
 
+    /**
+     * Returns the compiled pattern for a search text. Patterns are cached
+     * for the entries of the search history, so repeating a search does
+     * not compile the expression again.
+     */
+    private static Pattern getPattern(String regex, boolean matchCase, boolean exact) {
+        int options = (matchCase ? 0 : 1) | (exact ? 2 : 0);
+        Pattern[] patterns = patternCache.get(regex);
+        if (patterns == null) {
+            // drop the patterns of searches that fell out of the history
+            List searchList = findInfo.getSearchList();
+            if (searchList != null) {
+                patternCache.keySet().retainAll(searchList);
             }
-            return -1;
+            patterns = new Pattern[4];
+            patternCache.put(regex, patterns);
+        }
+        Pattern pattern = patterns[options];
+        if (pattern == null) {
+            int flags = Pattern.MULTILINE;
+            if (!matchCase) {
+                flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            }
+            String expression = regex;
+            if (exact) {
+                expression = "(?<!\\p{javaJavaIdentifierPart})(?:" + regex + ")(?!\\p{javaJavaIdentifierPart})";
+            }
+            pattern = Pattern.compile(expression, flags);
+            patterns[options] = pattern;
+        }
+        return pattern;
+    }
+
+    /**
+     * Sets whether the search text of find and replace is a regular
+     * expression. The replace text of a regular expression search may
+     * refer to groups with <code>$n</code> or <code>${name}</code>.
+     */
+    public void setRegexSearch(boolean regexSearch) {
+        this.regexSearch = regexSearch;
+    }
+
+    public boolean isRegexSearch() {
+        return regexSearch;
+    }
+
+    /**
+     * Sets whether every match of the last search is highlighted. The
+     * matches are indexed in the background and kept up to date while
+     * the text is edited.
+     */
+    public void setHighlightAllMatches(boolean highlightAllMatches) {
+        if (this.highlightAllMatches == highlightAllMatches) {
+            return;
+        }
+        this.highlightAllMatches = highlightAllMatches;
+        if (highlightAllMatches) {
+            matchCountHandler = new MatchCountHandler();
+            getMatchHighlight().addChangeListener(matchCountHandler);
+            addCaretListener(matchCountHandler);
+            matchCountLabel = new JLabel();
+            matchCountLabel.setBorder(BorderFactory.createEmptyBorder(0, 4, 0, 4));
+            add(LEFT_OF_SCROLLBAR, matchCountLabel);
+            updateMatchCount();
+        }
+        else {
+            matchHighlight.removeChangeListener(matchCountHandler);
+            removeCaretListener(matchCountHandler);
+            matchCountHandler = null;
+            remove(matchCountLabel);
+            matchCountLabel = null;
+            matchHighlight.clear();
+        }
+        revalidate();
+    }
+
+    public boolean isHighlightAllMatches() {
+        return highlightAllMatches;
+    }
+
+    /**
+     * Returns the highlight of all matches, which also holds the match
+     * count and index.
+     */
+    public MatchHighlight getMatchHighlight() {
+        if (matchHighlight == null) {
+            matchHighlight = new MatchHighlight();
+            painter.addCustomHighlight(matchHighlight);
+        }
+        return matchHighlight;
+    }
+
+    private void updateMatchHighlight(String searchText, boolean matchCase, boolean exact) {
+        MatchHighlight highlight = getMatchHighlight();
+        if (searchText == null || searchText.length() == 0) {
+            highlight.clear();
+        }
+        else if (regexSearch) {
+            highlight.setSearch(getPattern(searchText, matchCase, exact));
         }
         else {
-            return index;
+            highlight.setSearch(getSearcher(searchText, matchCase, exact));
+        }
+    }
+
+    /**
+     * Selects the next highlighted match after the selection, wrapping
+     * around to the first. Until the match index is built this searches
+     * the text like <code>onFindNext()</code>.
+     *
+     * @return false if there is no match
+     */
+    public boolean findNextMatch() {
+        if (matchHighlight == null || !matchHighlight.isActive() || !matchHighlight.isComplete()) {
+            readGlobalFind();
+            return findInfo.getSearchText() != null && find(findInfo, getCaretPosition(), false);
+        }
+        return selectMatch(matchHighlight.getNextMatch(getSelectionEnd()));
+    }
+
+    /**
+     * Selects the previous highlighted match before the selection,
+     * wrapping around to the last. Until the match index is built this
+     * searches the text backwards.
+     *
+     * @return false if there is no match
+     */
+    public boolean findPreviousMatch() {
+        if (matchHighlight == null || !matchHighlight.isActive() || !matchHighlight.isComplete()) {
+            readGlobalFind();
+            return findInfo.getSearchText() != null && findPrevious(findInfo);
+        }
+        return selectMatch(matchHighlight.getPreviousMatch(getSelectionStart()));
+    }
+
+    /**
+     * Selects the last match before the selection, wrapping around to the
+     * last match after it. The text is matched from the start the way the
+     * match index is built, so both agree on which matches there are.
+     */
+    private boolean findPrevious(FindInfo findInfo) {
+        String searchText = findInfo.getSearchText();
+        boolean matchCase = findInfo.isMatchCase();
+        boolean exact = findInfo.isMatchWord();
+        try {
+            if (highlightAllMatches) {
+                updateMatchHighlight(searchText, matchCase, exact);
+            }
+            TextSearcher textSearcher = regexSearch ? null : getSearcher(searchText, matchCase, exact);
+            Pattern pattern = regexSearch ? getPattern(searchText, matchCase, exact) : null;
+            CharSequence text = getDocumentChars();
+            MatchHighlight.Matches matches = new MatchHighlight.Matches();
+            MatchHighlight.scan(text, 0, getSelectionStart(), textSearcher, pattern, matches);
+            if (matches.count == 0) {
+                MatchHighlight.scan(text, getSelectionEnd(), text.length(), textSearcher, pattern, matches);
+            }
+            if (matches.count == 0) {
+                return false;
+            }
+            select(matches.starts[matches.count - 1], matches.ends[matches.count - 1]);
+            requestFocus();
+            return true;
+        }
+        catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Shows the number of matches, and which one is selected, left of the
+     * horizontal scroll bar.
+     */
+    private void updateMatchCount() {
+        if (matchCountLabel == null) {
+            return;
+        }
+        String text = "";
+        if (matchHighlight.isActive()) {
+            int count = matchHighlight.getMatchCount();
+            if (!matchHighlight.isComplete()) {
+                text = count == 0 ? "Searching..." : count + " matches...";
+            }
+            else if (count == 0) {
+                text = "No matches";
+            }
+            else {
+                int index = matchHighlight.getNextMatch(getSelectionStart());
+                if (matchHighlight.getMatchStart(index) == getSelectionStart()
+                        && matchHighlight.getMatchEnd(index) == getSelectionEnd()) {
+                    text = (index + 1) + " of " + count;
+                }
+                else {
+                    text = count == 1 ? "1 match" : count + " matches";
+                }
+            }
         }
+        matchCountLabel.setText(text);
+    }
+
+    private boolean selectMatch(int index) {
+        if (index == -1) {
+            return false;
+        }
+        select(matchHighlight.getMatchStart(index), matchHighlight.getMatchEnd(index));
+        return true;
+    }
+
+    private TextSearcher getSearcher(String searchText, boolean matchCase, boolean exact) {
+        if (searcher == null || !searcher.isFor(searchText, matchCase, exact)) {
+            searcher = new TextSearcher(searchText, matchCase, exact);
+        }
+        return searcher;
+    }
+
+    /**
+     * Returns a view of the current document text for searching. The view
+     * is only valid until the document changes.
+     */
+    private DocumentCharSequence getDocumentChars() {
+        if (documentChars == null || documentChars.getDocument() != document) {
+            documentChars = new DocumentCharSequence(document);
+        }
+        documentChars.reset();
+        return documentChars;
     }
 
     public Dimension getPreferredScrollableViewportSize0() {
@@ -2984,8 +3780,6 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     public Dimension getPreferredScrollableViewportSize() {
         Dimension size = getPreferredScrollableViewportSize0();
         size = (size == null) ? new Dimension(400, 400) : size;
-        int maxLengthLine = getMaxLengthLine();
-        String text = getLineText(maxLengthLine);
         int columns = 2000;
         size.width = (columns == 0) ? size.width : columns * getColumnWidth();
         size.height = (getLineCount() == 0) ? size.height : getLineCount() * getRowHeight();
@@ -3376,6 +4170,16 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         }
     }
 
+    class MatchCountHandler implements ChangeListener, CaretListener {
+        public void stateChanged(ChangeEvent evt) {
+            updateMatchCount();
+        }
+
+        public void caretUpdate(CaretEvent evt) {
+            updateMatchCount();
+        }
+    }
+
     class MouseHandler extends MouseAdapter {
         public void mousePressed(MouseEvent evt) {
             requestFocus();
@@ -3542,6 +4346,103 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         }
     }
 
+    /**
+     * Splits the text into line aligned chunks on a worker thread and
+     * appends each one on the event dispatch thread, waiting for it to be
+     * applied so that the event queue is drained between chunks.
+     */
+    class TextLoader extends SwingWorker<Object, Object> {
+        private final String text;
+        private final int firstLines;
+        // restored when loading ends, updated by setEditable() meanwhile
+        private boolean editable;
+
+        TextLoader(String text, int firstLines, boolean editable) {
+            this.text = text;
+            this.firstLines = firstLines;
+            this.editable = editable;
+        }
+
+        protected Object doInBackground() throws Exception {
+            int length = text.length();
+            int start = 0;
+            int end = 0;
+            for (int i = 0; i < firstLines && end < length; i++) {
+                end = nextLineStart(end);
+            }
+            if (end > LOAD_CHUNK_SIZE) {
+                end = chunkEnd(0);
+            }
+            while (start < length) {
+                if (isCancelled()) {
+                    return null;
+                }
+                append(text.substring(start, end));
+                start = end;
+                end = chunkEnd(start);
+            }
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
+            return null;
+        }
+
+        private int nextLineStart(int offset) {
+            int length = text.length();
+            if (offset >= length) {
+                return length;
+            }
+            int newline = text.indexOf('\n', offset);
+            return newline < 0 ? length : newline + 1;
+        }
+
+        /**
+         * Returns the end of the chunk starting at <i>start</i>: the last
+         * line end within <code>LOAD_CHUNK_SIZE</code> characters, or the
+         * size limit itself if a line runs past it.
+         */
+        private int chunkEnd(int start) {
+            int limit = start + LOAD_CHUNK_SIZE;
+            if (limit >= text.length()) {
+                return text.length();
+            }
+            int newline = text.lastIndexOf('\n', limit - 1);
+            if (newline >= start) {
+                return newline + 1;
+            }
+            // don't split a surrogate pair
+            return Character.isHighSurrogate(text.charAt(limit - 1)) ? limit - 1 : limit;
+        }
+
+        private void append(final String chunk) throws Exception {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    if (textLoader != TextLoader.this) {
+                        return;
+                    }
+                    try {
+                        document.insertString(document.getLength(), chunk, null);
+                    }
+                    catch (BadLocationException bl) {
+                        bl.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        private void finish() {
+            if (textLoader == TextLoader.this) {
+                endTextLoad(TextLoader.this);
+            }
+        }
+
+        protected void done() {
+            finish();
+        }
+    }
+
     class CaretUndo extends AbstractUndoableEdit {
         private int start;
         private int end;
@@ -3590,9 +4491,19 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
         public void actionPerformed(ActionEvent evt) {
             JEditTextArea focusedComponent = getFocusedComponent();
             if (focusedComponent != null
-                    && focusedComponent.hasFocus()) {
+                    && focusedComponent.hasFocus() && !isIconified(focusedComponent)) {
                 focusedComponent.blinkCaret();
             }
+            else {
+                // started again when a text area gains the focus
+                caretTimer.stop();
+            }
+        }
+
+        private static boolean isIconified(Component component) {
+            Window window = SwingUtilities.getWindowAncestor(component);
+            return window instanceof Frame
+                    && (((Frame) window).getExtendedState() & Frame.ICONIFIED) != 0;
         }
     }
 
@@ -3606,6 +4517,7 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     static void setFocusedComponent(JEditTextArea editTextArea) {
         if (editTextArea != null) {
             focusedComponentRef = new WeakReference(editTextArea);
+            caretTimer.restart();
         }
         else {
             focusedComponentRef = null;
@@ -3613,6 +4525,8 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     }
 
     private static final String DEFAULT_CODE_FONT = "Monospaced";
+    private static final int DEFAULT_LOAD_FIRST_LINES = 100;
+    private static final int LOAD_CHUNK_SIZE = 64 * 1024;
 
     public synchronized static boolean isAntiAlias() {
         Boolean anti = (Boolean) UIManager.get("code.antialias");
@@ -3680,7 +4594,6 @@ public class JEditTextArea extends JComponent implements TextEditComponent, Line
     static {
         caretTimer = new Timer(500, new CaretBlinker());
         caretTimer.setInitialDelay(500);
-        caretTimer.start();
     }
 
     //CORE-4456 Provided accessibility support for JEditTextArea
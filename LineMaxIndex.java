@@ -0,0 +1,283 @@
+/*
+*  LineMaxIndex.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import java.util.Random;
+
+/**
+ * Keeps an int value for every line of a document, for example the line
+ * length, and the line with the largest value. Lines can be inserted,
+ * removed and changed in O(log n); the largest value is available in
+ * O(1).
+ * <p/>
+ * The lines are kept in a treap ordered by line number, each node holding
+ * the size and the largest value of its subtree.
+ */
+public class LineMaxIndex {
+    private static final class Node {
+        Node left;
+        Node right;
+        final int priority;
+        int size;
+        int value;
+        int max;
+
+        Node(int value, int priority) {
+            this.value = value;
+            this.priority = priority;
+            this.size = 1;
+            this.max = value;
+        }
+    }
+
+    private final Random random = new Random();
+    private Node root;
+
+    /**
+     * Returns the number of lines.
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns the largest value, or <code>Integer.MIN_VALUE</code> if
+     * there are no lines.
+     */
+    public int getMaxValue() {
+        return root == null ? Integer.MIN_VALUE : root.max;
+    }
+
+    /**
+     * Returns the first line with the largest value, or -1 if there are no
+     * lines.
+     */
+    public int getMaxLine() {
+        Node node = root;
+        if (node == null) {
+            return -1;
+        }
+        int max = node.max;
+        int line = 0;
+        for (; ; ) {
+            if (node.left != null && node.left.max == max) {
+                node = node.left;
+            }
+            else if (node.value == max) {
+                return line + size(node.left);
+            }
+            else {
+                line += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a line.
+     *
+     * @param line The line
+     */
+    public int get(int line) {
+        checkLine(line, size());
+        Node node = root;
+        for (; ; ) {
+            int leftSize = size(node.left);
+            if (line < leftSize) {
+                node = node.left;
+            }
+            else if (line == leftSize) {
+                return node.value;
+            }
+            else {
+                line -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a line.
+     *
+     * @param line  The line
+     * @param value The new value
+     */
+    public void set(int line, int value) {
+        checkLine(line, size());
+        set(root, line, value);
+    }
+
+    /**
+     * Inserts a line.
+     *
+     * @param line  The index of the new line
+     * @param value The value of the new line
+     */
+    public void insert(int line, int value) {
+        insert(line, new int[]{value}, 1);
+    }
+
+    /**
+     * Inserts <i>count</i> lines with the given values.
+     *
+     * @param line   The index of the first new line
+     * @param values The values of the new lines
+     * @param count  The number of lines to insert
+     */
+    public void insert(int line, int[] values, int count) {
+        checkLine(line, size() + 1);
+        if (count <= 0) {
+            return;
+        }
+        Node[] parts = split(root, line);
+        root = merge(merge(parts[0], build(values, count)), parts[1]);
+    }
+
+    /**
+     * Removes <i>count</i> lines.
+     *
+     * @param line  The first line to remove
+     * @param count The number of lines to remove
+     */
+    public void remove(int line, int count) {
+        if (count <= 0) {
+            return;
+        }
+        checkLine(line + count - 1, size());
+        Node[] parts = split(root, line);
+        Node[] rest = split(parts[1], count);
+        root = merge(parts[0], rest[1]);
+    }
+
+    /**
+     * Replaces all lines with the given values.
+     *
+     * @param values The values of the lines
+     * @param count  The number of lines
+     */
+    public void setAll(int[] values, int count) {
+        root = build(values, count);
+    }
+
+    public void clear() {
+        root = null;
+    }
+
+    private static void checkLine(int line, int size) {
+        if (line < 0 || line >= size) {
+            throw new IndexOutOfBoundsException("Line " + line + ", size " + size);
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void update(Node node) {
+        node.size = 1;
+        node.max = node.value;
+        if (node.left != null) {
+            node.size += node.left.size;
+            node.max = Math.max(node.max, node.left.max);
+        }
+        if (node.right != null) {
+            node.size += node.right.size;
+            node.max = Math.max(node.max, node.right.max);
+        }
+    }
+
+    private static void set(Node node, int line, int value) {
+        int leftSize = size(node.left);
+        if (line < leftSize) {
+            set(node.left, line, value);
+        }
+        else if (line == leftSize) {
+            node.value = value;
+        }
+        else {
+            set(node.right, line - leftSize - 1, value);
+        }
+        update(node);
+    }
+
+    /**
+     * Splits a tree into the first <i>count</i> lines and the rest.
+     */
+    private static Node[] split(Node node, int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+        Node[] parts;
+        if (count <= size(node.left)) {
+            parts = split(node.left, count);
+            node.left = parts[1];
+            parts[1] = node;
+        }
+        else {
+            parts = split(node.right, count - size(node.left) - 1);
+            node.right = parts[0];
+            parts[0] = node;
+        }
+        update(node);
+        return parts;
+    }
+
+    private static Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            update(first);
+            return first;
+        }
+        else {
+            second.left = merge(first, second.left);
+            update(second);
+            return second;
+        }
+    }
+
+    /**
+     * Builds a tree from an array in linear time, keeping the nodes on the
+     * right spine on a stack.
+     */
+    private Node build(int[] values, int count) {
+        Node[] spine = new Node[count];
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            Node node = new Node(values[i], random.nextInt());
+            Node last = null;
+            while (top > 0 && spine[top - 1].priority < node.priority) {
+                last = spine[--top];
+                update(last);
+            }
+            node.left = last;
+            if (top > 0) {
+                spine[top - 1].right = node;
+            }
+            spine[top++] = node;
+        }
+        while (top > 1) {
+            update(spine[--top]);
+        }
+        if (top == 0) {
+            return null;
+        }
+        update(spine[0]);
+        return spine[0];
+    }
+}
@@ -0,0 +1,308 @@
+/*
+*  LineTokenCache.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import com.tplus.transform.swing.text.marker.TokenMarker;
+import com.tplus.transform.swing.text.token.Token;
+
+import javax.swing.text.Segment;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the tokens of recently used lines, so that painting and the
+ * offset/x co-ordinate conversions don't have to run the token marker
+ * again for lines that have not changed. The x positions of the
+ * characters of a line are kept with its tokens, and are dropped with
+ * them when the line changes. At most <i>capacity</i> lines
+ * are kept; the least recently used line is dropped when the cache is
+ * full.
+ * <p/>
+ * The text area invalidates lines as the document changes. When marking
+ * a line changes the state the next line starts in (the token marker
+ * keeps the end of line state of every line), the following lines are
+ * marked again until their state matches the stored one, but not past
+ * the last visible line. Only the lines whose tokens actually changed
+ * are repainted; cached lines past that point are dropped if the state
+ * did not settle.
+ * <p/>
+ * The kind of text on a line is kept with its tokens too, so the
+ * conversions can tell plain lines without scanning them every time.
+ */
+public class LineTokenCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** The kind of text of the line is not known */
+    public static final byte TEXT_UNKNOWN = 0;
+    /** The line has only printable ASCII characters */
+    public static final byte TEXT_PLAIN = 1;
+    /** The line has only printable ASCII characters and tabs */
+    public static final byte TEXT_PLAIN_TABS = 2;
+    /** The line has other characters */
+    public static final byte TEXT_OTHER = 3;
+
+    private static final class Entry {
+        Token tokens;
+        int[] advances;
+        byte textKind;
+    }
+
+    private final JEditTextArea textArea;
+    private final Map<Integer, Entry> lines;
+    private final Segment segment = new Segment();
+    private int hitCount;
+    private int missCount;
+    private int markCount;
+
+    public LineTokenCache(JEditTextArea textArea) {
+        this(textArea, DEFAULT_CAPACITY);
+    }
+
+    public LineTokenCache(JEditTextArea textArea, final int capacity) {
+        this.textArea = textArea;
+        lines = new LinkedHashMap<Integer, Entry>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the tokens of a line, marking the line if it is not cached.
+     *
+     * @param tokenMarker The token marker
+     * @param lineText    The text of the line
+     * @param line        The line number
+     */
+    public Token getTokens(TokenMarker tokenMarker, Segment lineText, int line) {
+        Entry entry = lines.get(line);
+        if (entry != null && entry.tokens != null) {
+            hitCount++;
+            return entry.tokens;
+        }
+        missCount++;
+        markCount++;
+        TextAreaMetrics metrics = textArea.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        // The token marker reuses its token list on the next call, so
+        // keep a copy of it
+        Token tokens = copyTokens(tokenMarker.markTokens(SegmentLine.create(lineText), line));
+        entry = new Entry();
+        entry.tokens = tokens;
+        lines.put(line, entry);
+        if (tokenMarker.isNextLineRequested()) {
+            markFollowingLines(tokenMarker, line);
+        }
+        if (metrics != null) {
+            metrics.handlerFinished(tokenMarker.getClass().getName(), System.nanoTime() - start);
+        }
+        return tokens;
+    }
+
+    /**
+     * Marks the lines after <i>line</i> until the state at the end of a
+     * line is the same as before, and repaints the lines whose tokens
+     * changed.
+     */
+    private void markFollowingLines(TokenMarker tokenMarker, int line) {
+        int lastLine = Math.min(textArea.getLineCount() - 1,
+                textArea.getFirstLine() + textArea.getVisibleLines());
+        int firstChanged = -1;
+        int lastChanged = -1;
+        boolean settled = false;
+        while (!settled && ++line <= lastLine) {
+            textArea.getLineText(line, segment);
+            Token tokens = copyTokens(tokenMarker.markTokens(SegmentLine.create(segment), line));
+            markCount++;
+            Entry entry = lines.get(line);
+            if (entry == null || entry.tokens == null || !sameTokens(entry.tokens, tokens)) {
+                // the text of the line did not change, only its tokens
+                byte textKind = entry == null ? TEXT_UNKNOWN : entry.textKind;
+                entry = new Entry();
+                entry.tokens = tokens;
+                entry.textKind = textKind;
+                lines.put(line, entry);
+                if (firstChanged == -1) {
+                    firstChanged = line;
+                }
+                lastChanged = line;
+            }
+            settled = !tokenMarker.isNextLineRequested();
+        }
+        if (!settled) {
+            // The lines below have to be marked again when they are needed
+            invalidateFrom(line);
+        }
+        if (firstChanged != -1) {
+            textArea.getPainter().linesRemarked(firstChanged, lastChanged);
+        }
+    }
+
+    /**
+     * Returns the x positions of the characters of a line, or null if
+     * they are not cached.
+     *
+     * @param line The line
+     */
+    public int[] getAdvances(int line) {
+        Entry entry = lines.get(line);
+        return entry == null ? null : entry.advances;
+    }
+
+    /**
+     * Stores the x positions of the characters of a line.
+     *
+     * @param line     The line
+     * @param advances The x positions
+     */
+    public void setAdvances(int line, int[] advances) {
+        Entry entry = lines.get(line);
+        if (entry == null) {
+            entry = new Entry();
+            lines.put(line, entry);
+        }
+        entry.advances = advances;
+    }
+
+    /**
+     * Returns the kind of text of a line, or <code>TEXT_UNKNOWN</code> if
+     * it is not cached.
+     *
+     * @param line The line
+     */
+    public byte getTextKind(int line) {
+        Entry entry = lines.get(line);
+        return entry == null ? TEXT_UNKNOWN : entry.textKind;
+    }
+
+    /**
+     * Stores the kind of text of a line.
+     *
+     * @param line     The line
+     * @param textKind One of the <code>TEXT_</code> constants
+     */
+    public void setTextKind(int line, byte textKind) {
+        Entry entry = lines.get(line);
+        if (entry == null) {
+            entry = new Entry();
+            lines.put(line, entry);
+        }
+        entry.textKind = textKind;
+    }
+
+    /**
+     * Drops the x positions of all lines, keeping their tokens. This
+     * should be called when the fonts, styles or tab size change.
+     */
+    public void clearAdvances() {
+        for (Entry entry : lines.values()) {
+            entry.advances = null;
+        }
+    }
+
+    /**
+     * Drops the tokens of a line.
+     *
+     * @param line The line
+     */
+    public void invalidate(int line) {
+        lines.remove(line);
+    }
+
+    /**
+     * Drops the tokens of a range of lines.
+     *
+     * @param firstLine The first line to drop
+     * @param lastLine  The last line to drop
+     */
+    public void invalidateRange(int firstLine, int lastLine) {
+        Iterator<Integer> iterator = lines.keySet().iterator();
+        while (iterator.hasNext()) {
+            int line = iterator.next();
+            if (line >= firstLine && line <= lastLine) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the tokens of a line and all lines after it.
+     *
+     * @param firstLine The first line to drop
+     */
+    public void invalidateFrom(int firstLine) {
+        invalidateRange(firstLine, Integer.MAX_VALUE);
+    }
+
+    public void clear() {
+        lines.clear();
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of times the token marker was run, including
+     * the following lines marked again after a miss.
+     */
+    public int getMarkCount() {
+        return markCount;
+    }
+
+    public void resetStatistics() {
+        hitCount = missCount = markCount = 0;
+    }
+
+    private static boolean sameTokens(Token tokens1, Token tokens2) {
+        while (tokens1 != null && tokens2 != null) {
+            if (tokens1.id != tokens2.id || tokens1.length != tokens2.length) {
+                return false;
+            }
+            if (tokens1.id == Token.END) {
+                return true;
+            }
+            tokens1 = tokens1.next;
+            tokens2 = tokens2.next;
+        }
+        return tokens1 == tokens2;
+    }
+
+    private static Token copyTokens(Token tokens) {
+        Token first = null;
+        Token last = null;
+        for (Token token = tokens; token != null; token = token.next) {
+            Token copy = new Token(token.length, token.id);
+            if (last == null) {
+                first = copy;
+            }
+            else {
+                last.next = copy;
+            }
+            last = copy;
+            if (token.id == Token.END) {
+                break;
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,623 @@
+/*
+*  MatchHighlight.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.EventListenerList;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Highlights every match of the current search. The matches are kept in
+ * sorted arrays of start and end offsets, so painting a line and moving
+ * to the next or previous match are binary searches.
+ * <p/>
+ * The index is built on a worker thread that reads the document in
+ * chunks. After a document change the index is patched by searching the
+ * changed lines again, along with as many lines around them as a match
+ * can span. For a regular expression that may match a line break, and
+ * for changes too large to patch cheaply, the matches touching the
+ * change are dropped, the others are moved, and the index is built again
+ * in the background once editing pauses.
+ */
+public class MatchHighlight implements TextAreaPainter.Highlight {
+    // changes spanning more text than this are not patched in place
+    private static final int PATCH_LIMIT = 64 * 1024;
+    private static final int REFRESH_DELAY = 300;
+
+    private JEditTextArea textArea;
+    private TextAreaPainter.Highlight next;
+    private final EventListenerList listenerList = new EventListenerList();
+    private Color color = new Color(255, 238, 153);
+
+    private TextSearcher searcher;
+    private Pattern pattern;
+    private Document document;
+    private DocumentCharSequence documentChars;
+    private Matches matches = new Matches();
+    private boolean complete;
+    private IndexWorker worker;
+    // read by the worker to tell when the document it reads has changed
+    private volatile int changeCount;
+    private final Timer refreshTimer = new Timer(REFRESH_DELAY, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+            startWorker();
+        }
+    });
+
+    {
+        refreshTimer.setRepeats(false);
+    }
+
+    public void init(JEditTextArea textArea, TextAreaPainter.Highlight next) {
+        this.textArea = textArea;
+        this.next = next;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public void setColor(Color color) {
+        this.color = color;
+        repaint();
+    }
+
+    /**
+     * Highlights the matches of a literal search.
+     */
+    public void setSearch(TextSearcher searcher) {
+        if (searcher != this.searcher || pattern != null) {
+            this.searcher = searcher;
+            this.pattern = null;
+            rebuild();
+        }
+    }
+
+    /**
+     * Highlights the matches of a regular expression search. Empty
+     * matches are not highlighted.
+     */
+    public void setSearch(Pattern pattern) {
+        if (pattern != this.pattern || searcher != null) {
+            this.searcher = null;
+            this.pattern = pattern;
+            rebuild();
+        }
+    }
+
+    /**
+     * Removes the highlight of all matches.
+     */
+    public void clear() {
+        searcher = null;
+        pattern = null;
+        rebuild();
+    }
+
+    public boolean isActive() {
+        return searcher != null || pattern != null;
+    }
+
+    /**
+     * Returns true once the index of the current search has been built.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the number of matches found, which is only final once the
+     * index is complete.
+     */
+    public int getMatchCount() {
+        return matches.count;
+    }
+
+    public int getMatchStart(int index) {
+        return matches.starts[index];
+    }
+
+    public int getMatchEnd(int index) {
+        return matches.ends[index];
+    }
+
+    /**
+     * Returns the index of the first match starting at or after the
+     * offset, wrapping around to the first match, or -1 if there are no
+     * matches.
+     */
+    public int getNextMatch(int offset) {
+        if (matches.count == 0) {
+            return -1;
+        }
+        int index = firstAtOrAfter(matches.starts, matches.count, offset);
+        return index == matches.count ? 0 : index;
+    }
+
+    /**
+     * Returns the index of the last match starting before the offset,
+     * wrapping around to the last match, or -1 if there are no matches.
+     */
+    public int getPreviousMatch(int offset) {
+        if (matches.count == 0) {
+            return -1;
+        }
+        int index = firstAtOrAfter(matches.starts, matches.count, offset) - 1;
+        return index < 0 ? matches.count - 1 : index;
+    }
+
+    public void addChangeListener(ChangeListener l) {
+        listenerList.add(ChangeListener.class, l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+        listenerList.remove(ChangeListener.class, l);
+    }
+
+    protected void fireStateChanged() {
+        ChangeEvent evt = new ChangeEvent(this);
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == ChangeListener.class) {
+                ((ChangeListener) listeners[i + 1]).stateChanged(evt);
+            }
+        }
+    }
+
+    /**
+     * Starts building the index of the current search from scratch.
+     */
+    public void rebuild() {
+        matches = new Matches();
+        document = textArea.getDocument();
+        documentChars = null;
+        startWorker();
+        repaint();
+        fireStateChanged();
+    }
+
+    private void startWorker() {
+        refreshTimer.stop();
+        if (worker != null) {
+            worker.cancel(true);
+            worker = null;
+        }
+        complete = !isActive();
+        if (!complete) {
+            worker = new IndexWorker(document, searcher, pattern, changeCount);
+            worker.execute();
+        }
+    }
+
+    /**
+     * Patches the index after a document change. Called by the text area
+     * once its line indexes have been updated.
+     */
+    void documentChanged(DocumentEvent evt) {
+        if (!isActive()) {
+            return;
+        }
+        if (document != textArea.getDocument()) {
+            rebuild();
+            return;
+        }
+        changeCount++;
+        int offset = evt.getOffset();
+        int length = evt.getLength();
+        int delta = evt.getType() == DocumentEvent.EventType.INSERT ? length : -length;
+        if (!complete || (pattern != null && canSpanLines(pattern)) || length > PATCH_LIMIT) {
+            refreshLater(offset, length, delta);
+            return;
+        }
+
+        // search the changed lines again, in new document offsets, with
+        // as many lines around them as a match can span
+        int reach = 0;
+        if (searcher != null) {
+            String searchText = searcher.getSearchText();
+            for (int i = searchText.indexOf('\n'); i != -1; i = searchText.indexOf('\n', i + 1)) {
+                reach++;
+            }
+        }
+        int changeEnd = delta > 0 ? offset + delta : offset;
+        int startLine = Math.max(0, textArea.getLineOfOffset(offset) - reach);
+        int endLine = Math.min(textArea.getLineCount() - 1, textArea.getLineOfOffset(changeEnd) + reach);
+        int windowStart = textArea.getLineStartOffset(startLine);
+        int windowEnd = Math.min(textArea.getDocumentLength(), textArea.getLineEndOffset(endLine) - 1);
+
+        // the old matches touching the window, in old document offsets
+        int first = firstAtOrAfter(matches.ends, matches.count, windowStart + 1);
+        int last = firstAtOrAfter(matches.starts, matches.count, windowEnd - delta);
+        if (first < last) {
+            windowStart = Math.min(windowStart, matches.starts[first]);
+            windowEnd = Math.max(windowEnd, matches.ends[last - 1] + delta);
+        }
+        if (windowEnd - windowStart > PATCH_LIMIT) {
+            refreshLater(offset, length, delta);
+            return;
+        }
+
+        if (documentChars == null) {
+            documentChars = new DocumentCharSequence(document);
+        }
+        documentChars.reset();
+        Matches found = new Matches();
+        scan(documentChars, windowStart, windowEnd, searcher, pattern, found);
+
+        int oldCount = matches.count;
+        matches.replace(first, last, found, delta);
+        // the window may reach past the lines the text area repaints
+        repaintRange(windowStart, windowEnd);
+        if (oldCount != matches.count || found.count != 0) {
+            fireStateChanged();
+        }
+    }
+
+    /**
+     * Drops the matches touching a change, moves the ones after it and
+     * builds the index again once the text has not changed for a while.
+     */
+    private void refreshLater(int offset, int length, int delta) {
+        int removedEnd = delta < 0 ? offset + length : offset;
+        int first = firstAtOrAfter(matches.ends, matches.count, offset);
+        int last = firstAtOrAfter(matches.starts, matches.count, removedEnd + 1);
+        if (first < last) {
+            int dropStart = Math.min(matches.starts[first], offset);
+            int dropEnd = Math.max(matches.ends[last - 1], removedEnd) + delta;
+            matches.replace(first, last, new Matches(), delta);
+            repaintRange(dropStart, Math.min(Math.max(dropStart, dropEnd), textArea.getDocumentLength()));
+        }
+        else {
+            matches.replace(first, last, new Matches(), delta);
+        }
+        complete = false;
+        refreshTimer.restart();
+        fireStateChanged();
+    }
+
+    public void paintHighlight(Graphics gfx, int line, int y) {
+        if (matches.count != 0 && line >= 0 && line < textArea.getLineCount()) {
+            int lineStart = textArea.getLineStartOffset(line);
+            int lineEnd = lineStart + textArea.getLineLength(line);
+            int index = firstAtOrAfter(matches.ends, matches.count, lineStart + 1);
+            if (index < matches.count && matches.starts[index] <= lineEnd) {
+                TextAreaPainter painter = textArea.getPainter();
+                FontMetrics2 fm = painter.getFontMetrics();
+                int height = fm.getFontHeight();
+                int top = y + fm.getLeading() + fm.getMaxDescent();
+                int selectionStart = textArea.getSelectionStart();
+                int selectionEnd = textArea.getSelectionEnd();
+                gfx.setColor(color);
+                for (; index < matches.count && matches.starts[index] <= lineEnd; index++) {
+                    int start = matches.starts[index];
+                    int end = matches.ends[index];
+                    if (start == selectionStart && end == selectionEnd) {
+                        // the current match is painted as the selection
+                        continue;
+                    }
+                    int x1 = textArea._offsetToX(line, Math.max(start, lineStart) - lineStart);
+                    int x2 = end > lineEnd ? painter.getWidth() : textArea._offsetToX(line, end - lineStart);
+                    gfx.fillRect(x1, top, Math.max(1, x2 - x1), height);
+                }
+            }
+        }
+        if (next != null) {
+            next.paintHighlight(gfx, line, y);
+        }
+    }
+
+    public String getToolTipText(MouseEvent evt) {
+        return next == null ? null : next.getToolTipText(evt);
+    }
+
+    private void repaint() {
+        if (textArea != null) {
+            textArea.getPainter().repaint();
+        }
+    }
+
+    private void repaintRange(int start, int end) {
+        textArea.getPainter().invalidateLineRange(textArea.getLineOfOffset(start),
+                textArea.getLineOfOffset(end));
+    }
+
+    /**
+     * Returns false if no match of the pattern can contain a line break,
+     * so that matching the changed lines again finds all the matches
+     * they hold. This looks at the expression's source and errs towards
+     * true.
+     */
+    static boolean canSpanLines(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.DOTALL | Pattern.COMMENTS)) != 0) {
+            return true;
+        }
+        String regex = pattern.pattern();
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\' && i + 1 < regex.length()) {
+                // classes, escapes that may stand for a line break and
+                // back references; \G depends on where the scan starts
+                if ("nsvRWDHuxc0123456789pPQG".indexOf(regex.charAt(i + 1)) != -1) {
+                    return true;
+                }
+                // a range from an escaped character
+                if (inClass && i + 2 < regex.length() && regex.charAt(i + 2) == '-') {
+                    return true;
+                }
+                i++;
+            }
+            else if (ch == '\n') {
+                return true;
+            }
+            else if (ch == '[') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    return true;
+                }
+                inClass = true;
+            }
+            else if (ch == ']') {
+                inClass = false;
+            }
+            else if (inClass && ch == '-' && i > 0 && i + 1 < regex.length()
+                    && regex.charAt(i - 1) <= '\n' && regex.charAt(i + 1) >= '\n') {
+                // a range of control characters may take in the line break
+                return true;
+            }
+            else if (!inClass && ch == '(' && i + 1 < regex.length() && regex.charAt(i + 1) == '?') {
+                // inline dotall or comments flag
+                int j = i + 2;
+                while (j < regex.length() && (Character.isLetter(regex.charAt(j)) || regex.charAt(j) == '-')) {
+                    if (regex.charAt(j) == 's' || regex.charAt(j) == 'x') {
+                        return true;
+                    }
+                    j++;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the first value that is at least the key.
+     */
+    private static int firstAtOrAfter(int[] values, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Adds the matches lying within start and end to the list.
+     */
+    static void scan(CharSequence text, int start, int end, TextSearcher searcher, Pattern pattern, Matches matches) {
+        if (searcher != null) {
+            int length = searcher.getLength();
+            int index = searcher.indexOf(text, start, end);
+            while (index != -1) {
+                matches.add(index, index + length);
+                index = searcher.indexOf(text, index + length, end);
+            }
+        }
+        else {
+            Matcher matcher = pattern.matcher(text);
+            matcher.region(start, end);
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+            while (matcher.find()) {
+                if (matcher.end() > matcher.start()) {
+                    matches.add(matcher.start(), matcher.end());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorted, non overlapping match ranges.
+     */
+    static class Matches {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int count;
+
+        void add(int start, int end) {
+            ensureCapacity(count + 1);
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        /**
+         * Replaces the matches from first to last with the given ones and
+         * moves the matches after them by delta.
+         */
+        void replace(int first, int last, Matches found, int delta) {
+            int tail = count - last;
+            ensureCapacity(first + found.count + tail);
+            System.arraycopy(starts, last, starts, first + found.count, tail);
+            System.arraycopy(ends, last, ends, first + found.count, tail);
+            System.arraycopy(found.starts, 0, starts, first, found.count);
+            System.arraycopy(found.ends, 0, ends, first, found.count);
+            count = first + found.count + tail;
+            for (int i = first + found.count; i < count; i++) {
+                starts[i] += delta;
+                ends[i] += delta;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > starts.length) {
+                int length = Math.max(capacity, starts.length * 2);
+                starts = Arrays.copyOf(starts, length);
+                ends = Arrays.copyOf(ends, length);
+            }
+        }
+    }
+
+    /**
+     * Builds the index on a worker thread. The text is read from the
+     * document a chunk at a time under its read lock, so it is never
+     * copied as a whole, and the build gives up as soon as the document
+     * has changed since it started.
+     */
+    class IndexWorker extends SwingWorker<Matches, Object> {
+        private final Document document;
+        private final int length;
+        private final TextSearcher searcher;
+        private final Pattern pattern;
+        private final int changeCount;
+
+        IndexWorker(Document document, TextSearcher searcher, Pattern pattern, int changeCount) {
+            this.document = document;
+            this.length = document.getLength();
+            this.searcher = searcher;
+            this.pattern = pattern;
+            this.changeCount = changeCount;
+        }
+
+        protected Matches doInBackground() {
+            Matches found = new Matches();
+            try {
+                scan(new DocumentText(), 0, length, searcher, pattern, found);
+            }
+            catch (CancellationException e) {
+                return null;
+            }
+            return found;
+        }
+
+        protected void done() {
+            if (worker != this || isCancelled()) {
+                return;
+            }
+            worker = null;
+            if (changeCount != MatchHighlight.this.changeCount) {
+                // the text changed meanwhile, the refresh timer starts a new build
+                return;
+            }
+            try {
+                matches = get();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                matches = new Matches();
+            }
+            complete = true;
+            repaint();
+            fireStateChanged();
+        }
+
+        /**
+         * The text of the document as it was when the worker started. It
+         * stops the scan once the worker is cancelled or the document has
+         * changed.
+         */
+        class DocumentText implements CharSequence {
+            private static final int CHUNK_SIZE = 16 * 1024;
+            // chars read before the requested offset, for backwards scans
+            private static final int LOOK_BEHIND = 64;
+            private static final int CHECK_INTERVAL = 4096;
+            private final Segment segment = new Segment();
+            private final char[] chunk = new char[CHUNK_SIZE];
+            private int chunkStart;
+            private int chunkEnd;
+            private boolean loaded;
+            private int reads;
+
+            public int length() {
+                return length;
+            }
+
+            public char charAt(int index) {
+                if (++reads == CHECK_INTERVAL) {
+                    reads = 0;
+                    if (isCancelled()) {
+                        throw new CancellationException();
+                    }
+                }
+                if (index < chunkStart || index >= chunkEnd) {
+                    if (index < 0 || index >= length) {
+                        throw new IndexOutOfBoundsException("Index " + index + " out of range: " + length);
+                    }
+                    load(Math.max(0, index - LOOK_BEHIND));
+                }
+                return chunk[index - chunkStart];
+            }
+
+            public CharSequence subSequence(int start, int end) {
+                if (start < 0 || end > length || start > end) {
+                    throw new IndexOutOfBoundsException("Range " + start + "," + end + " out of range: " + length);
+                }
+                StringBuilder buffer = new StringBuilder(end - start);
+                for (int i = start; i < end; i++) {
+                    buffer.append(charAt(i));
+                }
+                return buffer.toString();
+            }
+
+            public String toString() {
+                return subSequence(0, length).toString();
+            }
+
+            private void load(final int offset) {
+                final int count = Math.min(CHUNK_SIZE, length - offset);
+                loaded = false;
+                document.render(new Runnable() {
+                    public void run() {
+                        // the change count is updated while the document
+                        // is locked for writing
+                        if (changeCount != MatchHighlight.this.changeCount) {
+                            return;
+                        }
+                        try {
+                            document.getText(offset, count, segment);
+                        }
+                        catch (BadLocationException e) {
+                            return;
+                        }
+                        // the segment may share the content's array
+                        System.arraycopy(segment.array, segment.offset, chunk, 0, count);
+                        loaded = true;
+                    }
+                });
+                if (!loaded) {
+                    throw new CancellationException();
+                }
+                chunkStart = offset;
+                chunkEnd = offset + count;
+            }
+        }
+    }
+}
@@ -0,0 +1,742 @@
+/*
+*  PieceTableContent.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Document content kept as a piece table, for very large texts. Unlike
+ * <code>GapContent</code>, inserting or removing text never moves the
+ * rest of the text: the content is a balanced tree of pieces, each a
+ * range of a buffer that is never written to again, so insert and
+ * remove are O(log n) wherever they happen.
+ * <p/>
+ * Because the buffers don't change and the tree is copied on write,
+ * {@link #getSnapshot()} is O(1) and the snapshot stays valid while the
+ * document is edited. <code>getChars()</code> returns a piece's buffer
+ * without copying when the range lies in one piece, or when the segment
+ * accepts a partial return.
+ * <p/>
+ * Positions behave like those of <code>GapContent</code>, including
+ * how undo puts them back and handing out an existing position for an
+ * offset that already has one. When several positions share an offset,
+ * which of them is handed out may differ from <code>GapContent</code>.
+ * The positions are kept in a balanced tree of distances between them,
+ * so an edit adjusts them in O(log n) plus the number of positions
+ * inside removed text.
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+    private static final int MIN_BUFFER_SIZE = 4096;
+
+    private static final class Node {
+        final char[] buffer;
+        final int start;
+        final int length;
+        final int priority;
+        final Node left;
+        final Node right;
+        final int total;
+
+        Node(char[] buffer, int start, int length, int priority, Node left, Node right) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.total = length + total(left) + total(right);
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(buffer, start, length, priority, left, right);
+        }
+    }
+
+    /**
+     * An unchanging copy of the content.
+     */
+    public static final class Snapshot implements CharSequence {
+        private final Node root;
+        private final int offset;
+        private final int length;
+
+        Snapshot(Node root, int offset, int length) {
+            this.root = root;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return PieceTableContent.charAt(root, offset + index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException(start + "," + end);
+            }
+            return new Snapshot(root, offset + start, end - start);
+        }
+
+        /**
+         * Fetches text from the snapshot, as
+         * {@link PieceTableContent#getChars(int, int, Segment)} does.
+         */
+        public void getChars(int where, int len, Segment txt) {
+            if (where < 0 || len < 0 || where + len > length) {
+                throw new IndexOutOfBoundsException(where + "," + len);
+            }
+            PieceTableContent.getChars(root, offset + where, len, txt);
+        }
+
+        public String toString() {
+            Segment segment = new Segment();
+            getChars(0, length, segment);
+            return segment.toString();
+        }
+    }
+
+    private final Random random = new Random();
+    private Node root;
+    // buffer new text is appended to
+    private char[] addBuffer;
+    private int addLength;
+
+    // positions, in offset order; see createPosition()
+    private MarkData markRoot;
+    private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<StickyPosition>();
+
+    /**
+     * Creates content holding the implied newline at the end of a
+     * document, like <code>GapContent</code>.
+     */
+    public PieceTableContent() {
+        addBuffer = new char[MIN_BUFFER_SIZE];
+        addBuffer[0] = '\n';
+        addLength = 1;
+        root = new Node(addBuffer, 0, 1, random.nextInt(), null, null);
+    }
+
+    public int length() {
+        return total(root);
+    }
+
+    /**
+     * Returns the current content, which doesn't change when the
+     * content is edited afterwards.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(root, 0, total(root));
+    }
+
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length()) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        int len = str.length();
+        if (len == 0) {
+            return null;
+        }
+        insert(where, str);
+        return new InsertUndo(where, str);
+    }
+
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        if (nitems == 0) {
+            return null;
+        }
+        String removed = getString(where, nitems);
+        List<UndoPosRef> posRefs = getPositionsInRange(where, nitems);
+        delete(where, nitems);
+        return new RemoveUndo(where, removed, posRefs);
+    }
+
+    public String getString(int where, int len) throws BadLocationException {
+        Segment segment = new Segment();
+        getChars(where, len, segment);
+        return segment.toString();
+    }
+
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", where + len);
+        }
+        getChars(root, where, len, txt);
+    }
+
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        removeUnusedMarks();
+        // like GapContent, hand out the live position already at the offset
+        MarkData existing = firstMark(offset, true);
+        if (existing != null && offsetOf(existing) == offset) {
+            StickyPosition position = existing.get();
+            if (position != null) {
+                return position;
+            }
+        }
+        StickyPosition position = new StickyPosition();
+        MarkData mark = new MarkData(position, random.nextInt(), queue);
+        position.mark = mark;
+        insertMark(mark, offset);
+        return position;
+    }
+
+    private void insert(int where, String str) {
+        int len = str.length();
+        Node extended = null;
+        if (addBuffer.length - addLength >= len) {
+            extended = extendPiece(root, where, len);
+        }
+        if (extended != null) {
+            str.getChars(0, len, addBuffer, addLength);
+            addLength += len;
+            root = extended;
+        }
+        else {
+            if (addBuffer.length - addLength < len) {
+                // earlier pieces keep the old buffer
+                addBuffer = new char[Math.max(MIN_BUFFER_SIZE, Math.max(len, addBuffer.length))];
+                addLength = 0;
+            }
+            str.getChars(0, len, addBuffer, addLength);
+            Node piece = new Node(addBuffer, addLength, len, random.nextInt(), null, null);
+            addLength += len;
+            Node[] parts = split(root, where);
+            root = merge(merge(parts[0], piece), parts[1]);
+        }
+        insertMarks(where, len);
+    }
+
+    private void delete(int where, int len) {
+        Node[] parts = split(root, where);
+        Node[] rest = split(parts[1], len);
+        root = merge(parts[0], rest[1]);
+        removeMarks(where, len);
+    }
+
+    /**
+     * Returns the tree with the piece that ends at <i>offset</i> made
+     * <i>len</i> characters longer, or null if that piece doesn't end at
+     * the used end of the add buffer. Typing then grows one piece instead
+     * of adding a piece per character.
+     */
+    private Node extendPiece(Node node, int offset, int len) {
+        if (node == null) {
+            return null;
+        }
+        int leftTotal = total(node.left);
+        if (offset <= leftTotal) {
+            Node left = extendPiece(node.left, offset, len);
+            return left == null ? null : node.with(left, node.right);
+        }
+        offset -= leftTotal;
+        if (offset == node.length) {
+            if (node.buffer == addBuffer && node.start + node.length == addLength) {
+                return new Node(node.buffer, node.start, node.length + len, node.priority, node.left, node.right);
+            }
+            return null;
+        }
+        if (offset < node.length) {
+            return null;
+        }
+        Node right = extendPiece(node.right, offset - node.length, len);
+        return right == null ? null : node.with(node.left, right);
+    }
+
+    /**
+     * Splits a tree into the first <i>offset</i> characters and the rest.
+     */
+    private Node[] split(Node node, int offset) {
+        if (node == null) {
+            return new Node[2];
+        }
+        int leftTotal = total(node.left);
+        if (offset <= leftTotal) {
+            Node[] parts = split(node.left, offset);
+            return new Node[]{parts[0], node.with(parts[1], node.right)};
+        }
+        offset -= leftTotal;
+        if (offset < node.length) {
+            Node first = new Node(node.buffer, node.start, offset, node.priority, node.left, null);
+            Node second = new Node(node.buffer, node.start + offset, node.length - offset, node.priority,
+                    null, node.right);
+            return new Node[]{first, second};
+        }
+        Node[] parts = split(node.right, offset - node.length);
+        return new Node[]{node.with(node.left, parts[0]), parts[1]};
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            return left.with(left.left, merge(left.right, right));
+        }
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    private static int total(Node node) {
+        return node == null ? 0 : node.total;
+    }
+
+    private static char charAt(Node node, int offset) {
+        while (true) {
+            int leftTotal = total(node.left);
+            if (offset < leftTotal) {
+                node = node.left;
+            }
+            else if (offset < leftTotal + node.length) {
+                return node.buffer[node.start + offset - leftTotal];
+            }
+            else {
+                offset -= leftTotal + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    private static void getChars(Node root, int where, int len, Segment txt) {
+        if (len == 0) {
+            txt.array = new char[0];
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+        // find the piece holding the first character
+        Node node = root;
+        int offset = where;
+        while (true) {
+            int leftTotal = total(node.left);
+            if (offset < leftTotal) {
+                node = node.left;
+            }
+            else if (offset < leftTotal + node.length) {
+                offset -= leftTotal;
+                break;
+            }
+            else {
+                offset -= leftTotal + node.length;
+                node = node.right;
+            }
+        }
+        int available = node.length - offset;
+        if (len <= available || txt.isPartialReturn()) {
+            txt.array = node.buffer;
+            txt.offset = node.start + offset;
+            txt.count = Math.min(len, available);
+            return;
+        }
+        char[] chars = new char[len];
+        copyChars(root, where, len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    /**
+     * Copies the characters from <i>where</i> to <i>where + len</i> into
+     * an array, visiting only the pieces in the range.
+     */
+    private static void copyChars(Node node, int where, int len, char[] chars, int to) {
+        if (node == null || len <= 0) {
+            return;
+        }
+        int leftTotal = total(node.left);
+        if (where < leftTotal) {
+            int count = Math.min(len, leftTotal - where);
+            copyChars(node.left, where, count, chars, to);
+            to += count;
+            where += count;
+            len -= count;
+        }
+        if (len > 0 && where < leftTotal + node.length) {
+            int start = where - leftTotal;
+            int count = Math.min(len, node.length - start);
+            System.arraycopy(node.buffer, node.start + start, chars, to, count);
+            to += count;
+            where += count;
+            len -= count;
+        }
+        if (len > 0) {
+            copyChars(node.right, where - leftTotal - node.length, len, chars, to);
+        }
+    }
+
+    // positions
+
+    /**
+     * A position handed out by createPosition(). Only its mark is kept by
+     * the content, weakly, so marks of unused positions can be dropped.
+     */
+    final class StickyPosition implements Position {
+        MarkData mark;
+
+        public int getOffset() {
+            return offsetOf(mark);
+        }
+
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    /**
+     * A node of the mark tree. The tree holds the marks in offset order;
+     * each mark stores its distance from the previous one, and each node
+     * the sum of the distances in its subtree, so a change only adjusts
+     * the distance of the first mark after it and the sums above.
+     */
+    static final class MarkData extends WeakReference<StickyPosition> {
+        final int priority;
+        // distance from the previous mark, or from 0 for the first one
+        int gap;
+        int sum;
+        MarkData left;
+        MarkData right;
+        MarkData parent;
+        boolean removed;
+
+        MarkData(StickyPosition position, int priority, ReferenceQueue<StickyPosition> queue) {
+            super(position, queue);
+            this.priority = priority;
+        }
+    }
+
+    private static int sum(MarkData mark) {
+        return mark == null ? 0 : mark.sum;
+    }
+
+    private static MarkData update(MarkData mark) {
+        mark.sum = sum(mark.left) + mark.gap + sum(mark.right);
+        if (mark.left != null) {
+            mark.left.parent = mark;
+        }
+        if (mark.right != null) {
+            mark.right.parent = mark;
+        }
+        return mark;
+    }
+
+    private static int offsetOf(MarkData mark) {
+        int offset = sum(mark.left) + mark.gap;
+        for (MarkData child = mark, parent = mark.parent; parent != null; child = parent, parent = parent.parent) {
+            if (child == parent.right) {
+                offset += sum(parent.left) + parent.gap;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the first mark after <i>offset</i>, or at it if
+     * <i>inclusive</i>, or null if there is none.
+     */
+    private MarkData firstMark(int offset, boolean inclusive) {
+        MarkData found = null;
+        MarkData mark = markRoot;
+        int base = 0;
+        while (mark != null) {
+            int markOffset = base + sum(mark.left) + mark.gap;
+            if (markOffset > offset || (inclusive && markOffset == offset)) {
+                found = mark;
+                mark = mark.left;
+            }
+            else {
+                base = markOffset;
+                mark = mark.right;
+            }
+        }
+        return found;
+    }
+
+    private static MarkData successor(MarkData mark) {
+        if (mark.right != null) {
+            mark = mark.right;
+            while (mark.left != null) {
+                mark = mark.left;
+            }
+            return mark;
+        }
+        while (mark.parent != null && mark == mark.parent.right) {
+            mark = mark.parent;
+        }
+        return mark.parent;
+    }
+
+    /**
+     * Changes the distance of a mark from the previous one, which moves it
+     * and all marks after it.
+     */
+    private static void addGap(MarkData mark, int delta) {
+        mark.gap += delta;
+        for (; mark != null; mark = mark.parent) {
+            mark.sum += delta;
+        }
+    }
+
+    /**
+     * Splits the marks into those before <i>offset</i> and the others.
+     * The first mark of the second tree keeps its distance from the last
+     * mark of the first.
+     */
+    private static MarkData[] split(MarkData mark, int offset, int base) {
+        if (mark == null) {
+            return new MarkData[2];
+        }
+        int markOffset = base + sum(mark.left) + mark.gap;
+        MarkData[] parts;
+        if (markOffset < offset) {
+            parts = split(mark.right, offset, markOffset);
+            mark.right = parts[0];
+            parts[0] = update(mark);
+        }
+        else {
+            parts = split(mark.left, offset, base);
+            mark.left = parts[1];
+            parts[1] = update(mark);
+        }
+        if (parts[0] != null) {
+            parts[0].parent = null;
+        }
+        if (parts[1] != null) {
+            parts[1].parent = null;
+        }
+        return parts;
+    }
+
+    private static MarkData merge(MarkData left, MarkData right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    /**
+     * Puts a mark into the tree at an offset.
+     */
+    private void insertMark(MarkData mark, int offset) {
+        MarkData[] parts = split(markRoot, offset, 0);
+        mark.left = mark.right = mark.parent = null;
+        mark.gap = offset - sum(parts[0]);
+        update(mark);
+        if (parts[1] != null) {
+            MarkData first = parts[1];
+            while (first.left != null) {
+                first = first.left;
+            }
+            addGap(first, -mark.gap);
+        }
+        markRoot = merge(merge(parts[0], mark), parts[1]);
+        markRoot.parent = null;
+    }
+
+    /**
+     * Takes a mark out of the tree without moving the marks after it.
+     */
+    private void deleteMark(MarkData mark) {
+        MarkData next = successor(mark);
+        if (next != null) {
+            addGap(next, mark.gap);
+        }
+        addGap(mark, -mark.gap);
+        MarkData parent = mark.parent;
+        MarkData replacement = merge(mark.left, mark.right);
+        if (replacement != null) {
+            replacement.parent = parent;
+        }
+        if (parent == null) {
+            markRoot = replacement;
+        }
+        else if (parent.left == mark) {
+            parent.left = replacement;
+        }
+        else {
+            parent.right = replacement;
+        }
+        mark.left = mark.right = mark.parent = null;
+    }
+
+    private void insertMarks(int where, int len) {
+        // positions at the start of the document stay there, others at
+        // the insert move with the text after it
+        MarkData first = firstMark(where, where != 0);
+        if (first != null) {
+            addGap(first, len);
+        }
+    }
+
+    private void removeMarks(int where, int len) {
+        // positions in the removed text move to its start
+        MarkData mark = firstMark(where, false);
+        if (mark == null) {
+            return;
+        }
+        int previousOld = offsetOf(mark) - mark.gap;
+        int previousNew = previousOld;
+        for (; mark != null; mark = successor(mark)) {
+            int oldOffset = previousOld + mark.gap;
+            int newOffset = oldOffset <= where + len ? where : oldOffset - len;
+            addGap(mark, newOffset - previousNew - mark.gap);
+            previousOld = oldOffset;
+            previousNew = newOffset;
+            if (oldOffset > where + len) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the marks from <i>offset</i> to <i>offset + length</i>,
+     * with their offsets, so that undo can put them back after the text
+     * is removed and inserted again.
+     */
+    private List<UndoPosRef> getPositionsInRange(int offset, int length) {
+        List<UndoPosRef> refs = new ArrayList<UndoPosRef>();
+        MarkData mark = firstMark(offset, true);
+        if (mark == null) {
+            return refs;
+        }
+        int markOffset = offsetOf(mark);
+        while (markOffset <= offset + length) {
+            refs.add(new UndoPosRef(mark, markOffset));
+            mark = successor(mark);
+            if (mark == null) {
+                break;
+            }
+            markOffset += mark.gap;
+        }
+        return refs;
+    }
+
+    private void updateUndoPositions(List<UndoPosRef> refs) {
+        for (UndoPosRef ref : refs) {
+            if (!ref.mark.removed) {
+                deleteMark(ref.mark);
+                insertMark(ref.mark, ref.offset);
+            }
+        }
+    }
+
+    static final class UndoPosRef {
+        final MarkData mark;
+        final int offset;
+
+        UndoPosRef(MarkData mark, int offset) {
+            this.mark = mark;
+            this.offset = offset;
+        }
+    }
+
+    private void removeUnusedMarks() {
+        Reference<? extends StickyPosition> reference;
+        while ((reference = queue.poll()) != null) {
+            MarkData mark = (MarkData) reference;
+            if (!mark.removed) {
+                deleteMark(mark);
+                mark.removed = true;
+            }
+        }
+    }
+
+    // undo
+
+    class InsertUndo extends AbstractUndoableEdit {
+        private static final long serialVersionUID = 1L;
+
+        private final int offset;
+        private final String text;
+        private List<UndoPosRef> posRefs;
+
+        InsertUndo(int offset, String text) {
+            this.offset = offset;
+            this.text = text;
+        }
+
+        public void undo() throws CannotUndoException {
+            super.undo();
+            posRefs = getPositionsInRange(offset, text.length());
+            delete(offset, text.length());
+        }
+
+        public void redo() throws CannotRedoException {
+            super.redo();
+            insert(offset, text);
+            updateUndoPositions(posRefs);
+            posRefs = null;
+        }
+    }
+
+    class RemoveUndo extends AbstractUndoableEdit {
+        private static final long serialVersionUID = 1L;
+
+        private final int offset;
+        private final String text;
+        private List<UndoPosRef> posRefs;
+
+        RemoveUndo(int offset, String text, List<UndoPosRef> posRefs) {
+            this.offset = offset;
+            this.text = text;
+            this.posRefs = posRefs;
+        }
+
+        public void undo() throws CannotUndoException {
+            super.undo();
+            insert(offset, text);
+            updateUndoPositions(posRefs);
+            posRefs = null;
+        }
+
+        public void redo() throws CannotRedoException {
+            super.redo();
+            posRefs = getPositionsInRange(offset, text.length());
+            delete(offset, text.length());
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+*  TextAreaMetrics.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+import javax.swing.event.EventListenerList;
+import java.awt.event.KeyEvent;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paint metrics of a text area: paint durations, lines painted, time
+ * spent in the highlight chain, token marker runs and coordinate
+ * conversions.
+ * <p/>
+ * Metrics are off unless enabled with
+ * {@link JEditTextArea#setMetricsEnabled(boolean)}, or for all text
+ * areas with the <code>com.tplus.transform.swing.text.metrics</code>
+ * system property. When they are off the painter only checks a null
+ * field. Enabled metrics are registered as an MBean and can be
+ * followed with a {@link TextAreaMetricsListener}.
+ * <p/>
+ * Typing latency is measured from a key event to the end of the first
+ * paint that covers the caret line. Key events that don't cause a
+ * repaint of the caret line are not counted, and a key that is still
+ * not painted when the next key arrives, or after ten seconds, is
+ * dropped. When a key takes longer than the slow event threshold to
+ * show, an entry is added to the slow event log. The entry lists the
+ * time taken by the handlers that ran in between: caret listeners, the
+ * token marker, highlights and painting, each without the time of the
+ * handlers it called. It also holds the stack of the event dispatch
+ * thread, taken while the key was still pending past the threshold.
+ * <p/>
+ * The counters are updated on the event dispatch thread without
+ * locking; values read over JMX may be slightly out of date. The JMX
+ * operations that read or clear the logs and the latency samples run
+ * on the event dispatch thread.
+ */
+public class TextAreaMetrics implements TextAreaMetricsMBean {
+    static final String ENABLED_PROPERTY = "com.tplus.transform.swing.text.metrics";
+
+    private static final long[] HISTOGRAM_BOUNDS_MICROS = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000
+    };
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int SLOW_EVENT_LOG_SIZE = 50;
+    // milliseconds after which a key that was not painted is dropped
+    private static final long PENDING_KEY_TIMEOUT = 10000;
+    // takes the stack of the event dispatch thread while a key is slow
+    private static Timer watchdog;
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final JEditTextArea textArea;
+    private final int id = nextId.incrementAndGet();
+    private final EventListenerList listenerList = new EventListenerList();
+    private ObjectName objectName;
+
+    private long paintCount;
+    private long paintNanos;
+    private long maxPaintNanos;
+    private final long[] paintHistogram = new long[HISTOGRAM_BOUNDS_MICROS.length + 1];
+    private long linesPainted;
+    private long highlightNanos;
+    long offsetToXCount;
+    long xToOffsetCount;
+    // the last LATENCY_SAMPLES typing latencies, in nanoseconds
+    private final long[] typingLatencies = new long[LATENCY_SAMPLES];
+    private long typingEventCount;
+    private long slowEventThresholdNanos = 100000000L;
+    private final LinkedList<String> slowEvents = new LinkedList<String>();
+    // the first key event that has not been painted yet, 0 if none
+    private volatile long pendingKeyTime;
+    private String pendingKey;
+    // the pending key was pressed and the key it types is still to come
+    private boolean pendingKeyPressed;
+    private boolean pendingRepaint;
+    private final Map<String, Long> pendingHandlerNanos = new LinkedHashMap<String, Long>();
+    private volatile StackTraceElement[] pendingStack;
+    private TimerTask pendingWatch;
+    private TimerTask pendingTimeout;
+    // the time of all handlers so far, to take nested handlers out
+    private long handlerNanos;
+    private long keyHandlerBase;
+    // token cache counts when the metrics were last reset
+    private long baseHitCount;
+    private long baseMissCount;
+    private long baseMarkCount;
+
+    TextAreaMetrics(JEditTextArea textArea) {
+        this.textArea = textArea;
+        clear();
+    }
+
+    public JEditTextArea getTextArea() {
+        return textArea;
+    }
+
+    public void addTextAreaMetricsListener(TextAreaMetricsListener listener) {
+        listenerList.add(TextAreaMetricsListener.class, listener);
+    }
+
+    public void removeTextAreaMetricsListener(TextAreaMetricsListener listener) {
+        listenerList.remove(TextAreaMetricsListener.class, listener);
+    }
+
+    /**
+     * Records a paint of the text area.
+     *
+     * @param nanos The time the paint took
+     * @param lines The number of lines painted
+     */
+    void painted(long nanos, int lines) {
+        paintCount++;
+        paintNanos += nanos;
+        if (nanos > maxPaintNanos) {
+            maxPaintNanos = nanos;
+        }
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BOUNDS_MICROS.length && micros >= HISTOGRAM_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        paintHistogram[bucket]++;
+        linesPainted += lines;
+
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == TextAreaMetricsListener.class) {
+                ((TextAreaMetricsListener) listeners[i + 1]).textAreaPainted(this, nanos, lines);
+            }
+        }
+    }
+
+    void highlightPainted(long nanos) {
+        highlightNanos += nanos;
+        handlerFinished("highlights", nanos);
+    }
+
+    /**
+     * Called before a key event is handled. Starts timing the key. An
+     * earlier key that is still waiting to be painted is dropped, except
+     * that the key typed by a key press is timed from the press: Enter,
+     * Backspace, Delete and Tab do their work when pressed.
+     */
+    void keyEventStarted(KeyEvent evt) {
+        keyHandlerBase = handlerNanos;
+        if (evt.getID() == KeyEvent.KEY_TYPED && pendingKeyPressed) {
+            pendingKeyPressed = false;
+            pendingKey += " '" + evt.getKeyChar() + "'";
+            return;
+        }
+        clearPendingKey();
+        pendingKeyTime = System.nanoTime();
+        pendingKey = KeyEvent.getKeyText(evt.getKeyCode())
+                + (evt.getID() == KeyEvent.KEY_TYPED ? " '" + evt.getKeyChar() + "'" : "");
+        pendingKeyPressed = evt.getID() == KeyEvent.KEY_PRESSED;
+        pendingRepaint = false;
+        pendingHandlerNanos.clear();
+        pendingStack = null;
+        final Thread eventThread = Thread.currentThread();
+        final long keyTime = pendingKeyTime;
+        pendingWatch = new TimerTask() {
+            public void run() {
+                if (pendingKeyTime == keyTime) {
+                    pendingStack = eventThread.getStackTrace();
+                }
+            }
+        };
+        pendingTimeout = new TimerTask() {
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (pendingKeyTime == keyTime) {
+                            clearPendingKey();
+                        }
+                    }
+                });
+            }
+        };
+        getWatchdog().schedule(pendingWatch, Math.max(1, slowEventThresholdNanos / 1000000));
+        getWatchdog().schedule(pendingTimeout, PENDING_KEY_TIMEOUT);
+    }
+
+    /**
+     * Called after a key event was handled. A key that requested no
+     * repaint of the caret line is not timed, once the key it types, if
+     * any, was handled too.
+     */
+    void keyEventFinished(long nanos) {
+        if (pendingKeyTime == 0) {
+            return;
+        }
+        handlerFinished("key handler", nanos - (handlerNanos - keyHandlerBase));
+        if (!pendingRepaint && !pendingKeyPressed) {
+            clearPendingKey();
+        }
+    }
+
+    /**
+     * Called when the painter was asked to repaint the caret line.
+     */
+    void repaintRequested() {
+        pendingRepaint = true;
+    }
+
+    /**
+     * Returns the time taken by all handlers so far. A handler that calls
+     * other handlers subtracts their time from its own.
+     */
+    long getHandlerNanos() {
+        return handlerNanos;
+    }
+
+    boolean isKeyPending() {
+        return pendingKeyTime != 0 && pendingRepaint;
+    }
+
+    /**
+     * Adds the time taken by a handler to the key being timed.
+     *
+     * @param name  The handler
+     * @param nanos The time the handler took
+     */
+    void handlerFinished(String name, long nanos) {
+        handlerNanos += nanos;
+        if (pendingKeyTime != 0) {
+            Long total = pendingHandlerNanos.get(name);
+            pendingHandlerNanos.put(name, total == null ? nanos : total + nanos);
+        }
+    }
+
+    /**
+     * Called after a paint that covered the caret line.
+     */
+    void keyPainted() {
+        long latency = System.nanoTime() - pendingKeyTime;
+        typingLatencies[(int) (typingEventCount % LATENCY_SAMPLES)] = latency;
+        typingEventCount++;
+        if (latency >= slowEventThresholdNanos) {
+            logSlowEvent(latency);
+        }
+        clearPendingKey();
+    }
+
+    private void logSlowEvent(long latency) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()))
+                .append(' ').append(pendingKey).append(": ")
+                .append(latency / 1000000).append(" ms");
+        List<Map.Entry<String, Long>> handlers = new ArrayList<Map.Entry<String, Long>>(pendingHandlerNanos.entrySet());
+        Collections.sort(handlers, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        for (Map.Entry<String, Long> handler : handlers) {
+            buffer.append("\n    ").append(handler.getKey()).append(": ")
+                    .append(handler.getValue() / 1000000).append(" ms");
+        }
+        StackTraceElement[] stack = pendingStack;
+        if (stack != null) {
+            buffer.append("\n  event thread after ").append(slowEventThresholdNanos / 1000000).append(" ms:");
+            for (StackTraceElement element : stack) {
+                buffer.append("\n    at ").append(element);
+            }
+        }
+        slowEvents.addFirst(buffer.toString());
+        if (slowEvents.size() > SLOW_EVENT_LOG_SIZE) {
+            slowEvents.removeLast();
+        }
+    }
+
+    private void clearPendingKey() {
+        if (pendingWatch != null) {
+            pendingWatch.cancel();
+            pendingWatch = null;
+        }
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel();
+            pendingTimeout = null;
+        }
+        pendingKeyTime = 0;
+        pendingRepaint = false;
+        pendingKey = null;
+        pendingKeyPressed = false;
+        pendingStack = null;
+        pendingHandlerNanos.clear();
+    }
+
+    private static synchronized Timer getWatchdog() {
+        if (watchdog == null) {
+            watchdog = new Timer("TextAreaMetrics watchdog", true);
+        }
+        return watchdog;
+    }
+
+    public long getSlowEventThresholdMillis() {
+        return slowEventThresholdNanos / 1000000;
+    }
+
+    public void setSlowEventThresholdMillis(long millis) {
+        slowEventThresholdNanos = millis * 1000000;
+    }
+
+    public long getTypingEventCount() {
+        return typingEventCount;
+    }
+
+    /**
+     * Returns a percentile of the latest typing latencies, in
+     * milliseconds.
+     *
+     * @param percentile The percentile, from 0 to 100
+     */
+    public double getTypingLatencyMillis(final double percentile) {
+        return onEventThread(new Callable<Double>() {
+            public Double call() {
+                return typingLatencyMillis(percentile);
+            }
+        });
+    }
+
+    private double typingLatencyMillis(double percentile) {
+        int count = (int) Math.min(typingEventCount, LATENCY_SAMPLES);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = new long[count];
+        System.arraycopy(typingLatencies, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+
+    public double getTypingLatencyP50Millis() {
+        return getTypingLatencyMillis(50);
+    }
+
+    public double getTypingLatencyP90Millis() {
+        return getTypingLatencyMillis(90);
+    }
+
+    public double getTypingLatencyP99Millis() {
+        return getTypingLatencyMillis(99);
+    }
+
+    public String[] getSlowEventLog() {
+        return onEventThread(new Callable<String[]>() {
+            public String[] call() {
+                return slowEvents.toArray(new String[slowEvents.size()]);
+            }
+        });
+    }
+
+    public long getPaintCount() {
+        return paintCount;
+    }
+
+    public double getAveragePaintMillis() {
+        return paintCount == 0 ? 0 : paintNanos / 1e6 / paintCount;
+    }
+
+    public double getMaxPaintMillis() {
+        return maxPaintNanos / 1e6;
+    }
+
+    public long[] getPaintHistogramBoundsMicros() {
+        return HISTOGRAM_BOUNDS_MICROS.clone();
+    }
+
+    public long[] getPaintHistogram() {
+        return paintHistogram.clone();
+    }
+
+    public long getLinesPainted() {
+        return linesPainted;
+    }
+
+    public double getAverageLinesPerPaint() {
+        return paintCount == 0 ? 0 : (double) linesPainted / paintCount;
+    }
+
+    public double getHighlightMillis() {
+        return highlightNanos / 1e6;
+    }
+
+    public long getMarkTokensCount() {
+        return textArea.getPainter().getTokenCache().getMarkCount() - baseMarkCount;
+    }
+
+    public double getTokenCacheHitRatio() {
+        LineTokenCache tokenCache = textArea.getPainter().getTokenCache();
+        long hits = tokenCache.getHitCount() - baseHitCount;
+        long lookups = hits + tokenCache.getMissCount() - baseMissCount;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public long getOffsetToXCount() {
+        return offsetToXCount;
+    }
+
+    public long getXToOffsetCount() {
+        return xToOffsetCount;
+    }
+
+    public void reset() {
+        onEventThread(new Callable<Object>() {
+            public Object call() {
+                clear();
+                return null;
+            }
+        });
+    }
+
+    private void clear() {
+        paintCount = 0;
+        paintNanos = 0;
+        maxPaintNanos = 0;
+        for (int i = 0; i < paintHistogram.length; i++) {
+            paintHistogram[i] = 0;
+        }
+        linesPainted = 0;
+        highlightNanos = 0;
+        offsetToXCount = 0;
+        xToOffsetCount = 0;
+        typingEventCount = 0;
+        slowEvents.clear();
+        clearPendingKey();
+        LineTokenCache tokenCache = textArea.getPainter().getTokenCache();
+        baseHitCount = tokenCache.getHitCount();
+        baseMissCount = tokenCache.getMissCount();
+        baseMarkCount = tokenCache.getMarkCount();
+    }
+
+    /**
+     * Runs a task on the event dispatch thread, which owns the metrics,
+     * and waits for its result. JMX calls come in on other threads.
+     */
+    private static <T> T onEventThread(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        if (SwingUtilities.isEventDispatchThread()) {
+            future.run();
+        }
+        else {
+            SwingUtilities.invokeLater(future);
+        }
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.tplus.transform.swing.text:type=TextAreaMetrics,id="
+                    + id);
+            if (server.isRegistered(objectName)) {
+                // another bean has the name, don't unregister it later
+                objectName = null;
+            }
+            else {
+                server.registerMBean(this, objectName);
+            }
+        }
+        catch (Exception e) {
+            // metrics are still available through the listeners
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (Exception e) {
+                // already unregistered
+            }
+            objectName = null;
+        }
+    }
+}
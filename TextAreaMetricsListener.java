@@ -0,0 +1,31 @@
+/*
+*  TextAreaMetricsListener.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import java.util.EventListener;
+
+/**
+ * Notified after a text area with metrics enabled has been painted.
+ *
+ * @see TextAreaMetrics#addTextAreaMetricsListener(TextAreaMetricsListener)
+ */
+public interface TextAreaMetricsListener extends EventListener {
+    /**
+     * Called on the event dispatch thread after each paint.
+     *
+     * @param metrics      The metrics of the text area
+     * @param paintNanos   The time the paint took, in nanoseconds
+     * @param linesPainted The number of lines painted
+     */
+    void textAreaPainted(TextAreaMetrics metrics, long paintNanos, int linesPainted);
+}
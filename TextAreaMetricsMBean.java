@@ -0,0 +1,67 @@
+/*
+*  TextAreaMetricsMBean.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+/**
+ * JMX view of the paint metrics of a text area.
+ *
+ * @see TextAreaMetrics
+ */
+public interface TextAreaMetricsMBean {
+    long getPaintCount();
+
+    double getAveragePaintMillis();
+
+    double getMaxPaintMillis();
+
+    /**
+     * Returns the upper bounds, in microseconds, of the paint duration
+     * histogram buckets. The last bucket has no upper bound.
+     */
+    long[] getPaintHistogramBoundsMicros();
+
+    long[] getPaintHistogram();
+
+    long getLinesPainted();
+
+    double getAverageLinesPerPaint();
+
+    double getHighlightMillis();
+
+    long getMarkTokensCount();
+
+    double getTokenCacheHitRatio();
+
+    long getOffsetToXCount();
+
+    long getXToOffsetCount();
+
+    long getTypingEventCount();
+
+    double getTypingLatencyP50Millis();
+
+    double getTypingLatencyP90Millis();
+
+    double getTypingLatencyP99Millis();
+
+    long getSlowEventThresholdMillis();
+
+    void setSlowEventThresholdMillis(long millis);
+
+    /**
+     * Returns the latest slow typing events, newest first.
+     */
+    String[] getSlowEventLog();
+
+    void reset();
+}
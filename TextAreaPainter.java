@@ -35,6 +35,9 @@ import javax.swing.text.Segment;
 import javax.swing.text.TabExpander;
 import java.awt.*;
 import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 /**
  * The text area repaint manager. It performs double buffering and paints
@@ -65,6 +68,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
         currentLine = new Segment();
         currentLineIndex = -1;
+        tokenCache = new LineTokenCache(textArea);
 
         setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
         Font codeFont = JEditTextArea.getDefaultCodeFont();
@@ -120,6 +124,10 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
      */
     public final void setStyles(SyntaxStyle[] styles) {
         this.styles = styles;
+        styleFonts = null;
+        charWidths = null;
+        monoCharWidth = -1;
+        textArea.invalidateLineWidths();
         repaint();
     }
 
@@ -163,6 +171,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
     public void setSelectionForegroundColor(Color selectionForegroundColor) {
         this.selectionForegroundColor = selectionForegroundColor;
+        invalidateSelectedLines();
     }
 
     /**
@@ -299,6 +308,8 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
      */
     public void setSyntaxHighlightEnabled(boolean syntaxHighlight) {
         this.syntaxHighlight = syntaxHighlight;
+        textArea.invalidateLineWidths();
+        repaint();
     }
 
     public Insets getMargin() {
@@ -307,6 +318,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
     public void setMargin(Insets margin) {
         this.margin = margin;
+        repaint();
     }
 
     public Insets getInsets() {
@@ -329,6 +341,17 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         super.repaint(i, i1, width, lineHeight);
     }
 
+    public void repaint(long tm, int x, int y, int width, int height) {
+        if (backingStore != null && width > 0 && height > 0) {
+            addBackingStoreDirty(x, y, width, height);
+            addPaintRequested(x, y, width, height);
+        }
+        if (textArea != null && textArea.metrics != null && isCaretLineIn(y, height)) {
+            textArea.metrics.repaintRequested();
+        }
+        super.repaint(tm, x, y, width, height);
+    }
+
     public Color getBackground() {
         return super.getBackground();
     }
@@ -345,6 +368,14 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         return logicalFont;
     }
 
+    /**
+     * Returns the cache of marked lines shared by the painter and the
+     * offset/x co-ordinate conversions of the text area.
+     */
+    public LineTokenCache getTokenCache() {
+        return tokenCache;
+    }
+
     /**
      * Returns true if invalid lines are painted as red tildes (~),
      * false otherwise.
@@ -360,6 +391,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
      */
     public void setInvalidLinesPainted(boolean paintInvalid) {
         this.paintInvalid = paintInvalid;
+        repaint();
     }
 
     /**
@@ -370,6 +402,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
     public void addCustomHighlight(Highlight highlight) {
         highlight.init(textArea, highlights);
         highlights = highlight;
+        repaint();
     }
 
     public int getInterLineSpacing() {
@@ -474,6 +507,10 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
     private void updateMetrics() {
         fm = new FontMetrics2(Toolkit.getDefaultToolkit().getFontMetrics(getFont()), interLineSpacing);
+        styleFonts = null;
+        charWidths = null;
+        monoCharWidth = -1;
+        textArea.invalidateLineWidths();
         textArea.recalculateVisibleLines();
     }
 
@@ -496,12 +533,240 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         return backcolor;
     }
 
+    /**
+     * Returns the scroll mode, either <code>JViewport.BACKINGSTORE_SCROLL_MODE</code>
+     * or <code>JViewport.SIMPLE_SCROLL_MODE</code>.
+     */
+    public int getScrollMode() {
+        return scrollMode;
+    }
+
+    /**
+     * Sets the scroll mode. In <code>JViewport.BACKINGSTORE_SCROLL_MODE</code>
+     * the painted lines are kept in an image; when the text area is scrolled
+     * vertically the image is moved and only the lines scrolled into view
+     * are painted. <code>JViewport.SIMPLE_SCROLL_MODE</code> paints all
+     * visible lines on every scroll and uses no extra memory.
+     *
+     * @param scrollMode The scroll mode
+     */
+    public void setScrollMode(int scrollMode) {
+        this.scrollMode = scrollMode;
+        backingStore = null;
+        backingStoreDirty = null;
+        repaint();
+    }
+
+    public void removeNotify() {
+        super.removeNotify();
+        backingStore = null;
+        backingStoreDirty = null;
+    }
+
     /**
      * Repaints the text.
      *
      * @param gfx The graphics context
      */
     public void paint(Graphics gfx) {
+        TextAreaMetrics metrics = textArea.metrics;
+        if (metrics == null) {
+            paintText(gfx);
+        }
+        else {
+            long start = System.nanoTime();
+            long handlerNanos = metrics.getHandlerNanos();
+            paintedLineCount = 0;
+            paintText(gfx);
+            long nanos = System.nanoTime() - start;
+            // the highlights and the token marker are timed on their own
+            metrics.handlerFinished("paint", nanos - (metrics.getHandlerNanos() - handlerNanos));
+            metrics.painted(nanos, paintedLineCount);
+            Rectangle clipRect = gfx.getClipBounds();
+            if (metrics.isKeyPending() && (clipRect == null || isCaretLineIn(clipRect.y, clipRect.height))) {
+                metrics.keyPainted();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the caret line overlaps a band of the painter.
+     */
+    private boolean isCaretLineIn(int y, int height) {
+        if (fm == null) {
+            return true;
+        }
+        int caretY = textArea.lineToY(textArea.getCaretLine()) + fm.getLeading() + fm.getMaxDescent();
+        return y < caretY + fm.getHeight() && caretY < y + height;
+    }
+
+    private void paintText(Graphics gfx) {
+        // requests made while painting are for the next paint
+        Rectangle requested = paintRequested;
+        paintRequested = null;
+        if (scrollMode == JViewport.BACKINGSTORE_SCROLL_MODE && !isPaintingForPrint()
+                && paintBackingStore((Graphics2D) gfx, requested)) {
+            return;
+        }
+        backingStore = null;
+        paintLines(gfx);
+    }
+
+    /**
+     * Brings the backing store up to date and copies it to the screen.
+     * Returns false if the backing store can't be used with the given
+     * graphics context.
+     * <p/>
+     * Paints the painter did not ask for, such as a repaint of the text
+     * area or of a window that was covered, may follow any change, so the
+     * part of the clip outside <i>requested</i> is painted again.
+     */
+    private boolean paintBackingStore(Graphics2D gfx, Rectangle requested) {
+        AffineTransform transform = gfx.getTransform();
+        double scale = transform.getScaleX();
+        if (scale != transform.getScaleY() || scale != Math.rint(scale) || scale < 1
+                || transform.getShearX() != 0 || transform.getShearY() != 0) {
+            return false;
+        }
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return true;
+        }
+        int storeScale = (int) scale;
+        int firstLine = textArea.getFirstLine();
+        int horizontalOffset = textArea.getHorizontalOffset();
+        if (backingStore == null || backingStoreScale != storeScale
+                || backingStore.getWidth() != width * storeScale
+                || backingStore.getHeight() != height * storeScale) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            backingStore = gc != null
+                    ? gc.createCompatibleImage(width * storeScale, height * storeScale)
+                    : new BufferedImage(width * storeScale, height * storeScale, BufferedImage.TYPE_INT_RGB);
+            backingStoreScale = storeScale;
+            backingStoreDirty = new Rectangle(0, 0, width, height);
+        }
+        else if (firstLine != backingStoreFirstLine || horizontalOffset != backingStoreHorizontalOffset) {
+            int dy = (firstLine - backingStoreFirstLine) * fm.getFontHeight();
+            if (horizontalOffset == backingStoreHorizontalOffset && Math.abs(dy) < height) {
+                Graphics storeGfx = backingStore.getGraphics();
+                storeGfx.copyArea(0, Math.max(dy, 0) * storeScale, width * storeScale,
+                        (height - Math.abs(dy)) * storeScale, 0, -dy * storeScale);
+                storeGfx.dispose();
+                if (backingStoreDirty != null) {
+                    // Lines invalidated before the scroll have moved with the text
+                    Rectangle moved = new Rectangle(backingStoreDirty);
+                    moved.translate(0, -dy);
+                    backingStoreDirty.add(moved);
+                }
+                addBackingStoreDirty(0, dy > 0 ? height - dy : 0, width, Math.abs(dy));
+            }
+            else {
+                addBackingStoreDirty(0, 0, width, height);
+            }
+        }
+        backingStoreFirstLine = firstLine;
+        backingStoreHorizontalOffset = horizontalOffset;
+
+        Rectangle clip = gfx.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, width, height);
+        }
+        if (requested == null || !requested.contains(clip)) {
+            addBackingStoreDirty(clip.x, clip.y, clip.width, clip.height);
+        }
+
+        if (backingStoreDirty != null) {
+            Rectangle dirty = backingStoreDirty.intersection(new Rectangle(0, 0, width, height));
+            // repaint requests made while painting apply to the next paint
+            backingStoreDirty = null;
+            if (!dirty.isEmpty()) {
+                Graphics2D storeGfx = (Graphics2D) backingStore.getGraphics();
+                storeGfx.scale(storeScale, storeScale);
+                storeGfx.setClip(dirty);
+                storeGfx.setFont(getFont());
+                // the caret is painted over the backing store, so that
+                // blinking doesn't paint the caret line again
+                paintingBackingStore = true;
+                try {
+                    paintLines(storeGfx);
+                }
+                finally {
+                    paintingBackingStore = false;
+                    storeGfx.dispose();
+                }
+            }
+        }
+        gfx.drawImage(backingStore, 0, 0, width, height, null);
+        int caretLine = textArea.getCaretLine();
+        if (caretLine >= firstLine && caretLine <= firstLine + textArea.getVisibleLines()) {
+            paintCaret(gfx, caretLine, textArea.lineToY(caretLine));
+        }
+        return true;
+    }
+
+    /**
+     * Repaints the caret after it was shown or hidden. Only the caret's
+     * bounds are repainted; in backing store scroll mode they are copied
+     * from the backing store, without painting the caret line again.
+     */
+    void repaintCaret() {
+        int line = textArea.getCaretLine();
+        int firstLine = textArea.getFirstLine();
+        if (line < firstLine || line > firstLine + textArea.getVisibleLines()) {
+            return;
+        }
+        int offset = textArea.getCaretPosition() - textArea.getLineStartOffset(line);
+        int caretX = textArea._offsetToX(line, offset);
+        int caretWidth = ((blockCaret || textArea.isOverwriteEnabled()) ?
+                fm.charWidth('w') : simpleCaretWidth);
+        int y = textArea.lineToY(line) + fm.getLeading() + fm.getMaxDescent();
+        if (backingStore != null) {
+            addPaintRequested(caretX, y, caretWidth, fm.getHeight());
+            super.repaint(0, caretX, y, caretWidth, fm.getHeight());
+        }
+        else {
+            repaint(0, caretX, y, caretWidth, fm.getHeight());
+        }
+    }
+
+    /**
+     * Repaints the painter after the text area was scrolled. In backing
+     * store scroll mode only the lines scrolled into view are painted
+     * again; everything else is copied.
+     */
+    void repaintScrolled() {
+        if (textArea.metrics != null) {
+            textArea.metrics.repaintRequested();
+        }
+        addPaintRequested(0, 0, getWidth(), getHeight());
+        super.repaint(0, 0, 0, getWidth(), getHeight());
+    }
+
+    private void addBackingStoreDirty(int x, int y, int width, int height) {
+        if (backingStoreDirty == null) {
+            backingStoreDirty = new Rectangle(x, y, width, height);
+        }
+        else {
+            backingStoreDirty.add(new Rectangle(x, y, width, height));
+        }
+    }
+
+    private void addPaintRequested(int x, int y, int width, int height) {
+        if (paintRequested == null) {
+            paintRequested = new Rectangle(x, y, width, height);
+        }
+        else {
+            paintRequested.add(new Rectangle(x, y, width, height));
+        }
+    }
+
+    /**
+     * Paints the lines intersecting the clip of the graphics context.
+     *
+     * @param gfx The graphics context
+     */
+    protected void paintLines(Graphics gfx) {
         Graphics2D g2 = (Graphics2D) gfx;
         if (JEditTextArea.isAntiAlias()) {
             //g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -513,8 +778,13 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
             //g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         }
 
-        tabSize = fm.charWidth(' ') * ((Integer) textArea
+        int newTabSize = fm.charWidth(' ') * ((Integer) textArea
                 .getSyntaxDocument().getProperty(PlainDocument.tabSizeAttribute)).intValue();
+        if (newTabSize != tabSize) {
+            // the cached x positions depend on the tab size
+            tokenCache.clearAdvances();
+            tabSize = newTabSize;
+        }
 
         Rectangle clipRect = gfx.getClipBounds();
         gfx.setColor(getPaintingBackground());
@@ -535,14 +805,11 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
                     .getTokenMarker();
             int x = textArea.getHorizontalOffset();
 
+            lastPaintLine = lastInvalid;
+            paintedLineCount += lastInvalid - firstInvalid + 1;
             for (int line = firstInvalid; line <= lastInvalid; line++) {
                 paintLine(gfx, tokenMarker, line, x);
             }
-
-            if (tokenMarker != null && tokenMarker.isNextLineRequested()) {
-                int h = clipRect.y + clipRect.height;
-                repaint(0, h, getWidth(), getHeight() - h);
-            }
         }
         catch (Exception e) {
             System.err.println("Error repainting line"
@@ -550,6 +817,26 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
                     + lastInvalid + "}:");
             e.printStackTrace();
         }
+        finally {
+            lastPaintLine = -1;
+        }
+    }
+
+    /**
+     * Called by the token cache when the tokens of a range of lines
+     * changed because a line above them was marked again. Lines that
+     * are still to be painted by the current paint() are skipped.
+     *
+     * @param firstLine The first changed line
+     * @param lastLine  The last changed line
+     */
+    void linesRemarked(int firstLine, int lastLine) {
+        if (lastPaintLine != -1) {
+            firstLine = Math.max(firstLine, lastPaintLine + 1);
+        }
+        if (firstLine <= lastLine) {
+            invalidateLineRange(firstLine, lastLine);
+        }
     }
 
 
@@ -625,9 +912,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
             return width;
         }
         else {
-            String text = textArea.getLineText(maxLengthLine);
-            int width = fm.stringWidth(text);
-            return width;
+            return textArea.getMaximumLineLength();
         }
     }
 
@@ -645,6 +930,9 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
     public void setShowCRLF(boolean showCRLF) {
         this.showCRLF = showCRLF;
+        charWidths = null;
+        monoCharWidth = -1;
+        textArea.invalidateLineWidths();
         if (showCRLF) {
             specialCharPainter = new SyntaxUtilities.SpecialCharPainterImpl(specialCharColor);
         }
@@ -657,11 +945,117 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         return specialCharPainter;
     }
 
+    /**
+     * Returns the font of a token id: the styled font of the id's syntax
+     * style, or the painter's font for <code>Token.NULL</code>. The
+     * styled fonts are derived once, and again only after the font or
+     * the styles change.
+     *
+     * @param id The token id
+     */
+    public LogicalFont getStyleFont(byte id) {
+        if (id == Token.NULL || styles == null || id >= styles.length || styles[id] == null) {
+            return logicalFont;
+        }
+        if (styleFonts == null) {
+            LogicalFont[] fonts = new LogicalFont[styles.length];
+            for (int i = 0; i < styles.length; i++) {
+                fonts[i] = styles[i] == null ? logicalFont : styles[i].getStyledLogicalFont(logicalFont);
+            }
+            styleFonts = fonts;
+        }
+        return styleFonts[id];
+    }
+
+    /**
+     * Returns the width of a character if the font and all the styles
+     * give every printable ASCII character the same width, or 0 if they
+     * don't. Lines made up of printable ASCII characters and tabs can
+     * then be measured by counting columns.
+     */
+    public int getMonospaceCharWidth() {
+        if (monoCharWidth == -1) {
+            monoCharWidth = computeMonospaceCharWidth();
+        }
+        return monoCharWidth;
+    }
+
+    private int computeMonospaceCharWidth() {
+        if (logicalFont == null || specialCharPainter != null) {
+            return 0;
+        }
+        int width = getCharWidth(' ', Token.NULL);
+        if (width <= 0 || !isMonospace(Token.NULL, width)) {
+            return 0;
+        }
+        if (styles != null) {
+            for (int i = 0; i < styles.length; i++) {
+                if (styles[i] != null && !isMonospace((byte) i, width)) {
+                    return 0;
+                }
+            }
+        }
+        return width;
+    }
+
+    private boolean isMonospace(byte id, int width) {
+        for (char c = ' '; c <= '~'; c++) {
+            if (getCharWidth(c, id) != width) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the width of a character in the font of a token id. The
+     * widths are kept in tables of 256 characters per id, filled when
+     * a character of the table is first measured, so that the font and
+     * its linked fonts are searched for a character only once.
+     *
+     * @param c  The character
+     * @param id The token id
+     */
+    public int getCharWidth(char c, byte id) {
+        int[][][] tables = charWidths;
+        if (tables == null) {
+            tables = new int[(styles == null ? 0 : styles.length) + 1][][];
+            charWidths = tables;
+        }
+        // ids without a style use the last table, like Token.NULL
+        int index = id == Token.NULL || id < 0 || id >= tables.length - 1 ? tables.length - 1 : id;
+        int[][] pages = tables[index];
+        if (pages == null) {
+            pages = new int[256][];
+            tables[index] = pages;
+        }
+        int[] page = pages[c >>> 8];
+        if (page == null) {
+            page = new int[256];
+            Arrays.fill(page, -1);
+            pages[c >>> 8] = page;
+        }
+        int width = page[c & 0xff];
+        if (width == -1) {
+            width = SyntaxUtilities.getCharWidth(c, getStyleFont(id), specialCharPainter);
+            page[c & 0xff] = width;
+        }
+        return width;
+    }
+
     // package-private members
     int currentLineIndex;
     Token currentLineTokens;
     Segment currentLine;
+    final LineTokenCache tokenCache;
     SyntaxUtilities.SpecialCharPainter specialCharPainter;
+    // styled fonts by token id, null if not derived yet
+    LogicalFont[] styleFonts;
+    // character widths by token id, in pages of 256 characters
+    int[][][] charWidths;
+    // width of a character if the fonts are fixed pitch, 0 if they are
+    // not, -1 if not known yet
+    int monoCharWidth = -1;
     // protected members
     protected JEditTextArea textArea;
 
@@ -685,6 +1079,18 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
     protected int rows;
     protected int interLineSpacing;
     protected int tabSize;
+    private int lastPaintLine = -1;
+    private int scrollMode = JViewport.BACKINGSTORE_SCROLL_MODE;
+    private BufferedImage backingStore;
+    private Rectangle backingStoreDirty;
+    // the area the painter asked to be repainted since the last paint
+    private Rectangle paintRequested;
+    private boolean paintingBackingStore;
+    // lines painted by the current paint(), counted for the metrics
+    private int paintedLineCount;
+    private int backingStoreScale;
+    private int backingStoreFirstLine;
+    private int backingStoreHorizontalOffset;
     //protected FontMetrics fontMetrics;
     FontMetrics2 fm;
     protected Highlight highlights;
@@ -724,7 +1130,9 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         gfx.setColor(defaultColor);
 
         y += fm.getHeight();
+        int startX = x;
         x = SyntaxUtilities.drawTabbedText(currentLine, x, y, gfx, defaultFont, this, 0, specialCharPainter);
+        textArea.lineMeasured(line, x - startX);
         if (eolMarkers) {
             gfx.setColor(eolMarkerColor);
             gfx.drawString(".", x, y);
@@ -749,7 +1157,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
 
     protected void paintSyntaxLine(Graphics gfx, TokenMarker tokenMarker, int line, LogicalFont defaultFont, Color defaultColor, int x, int y) {
         textArea.getLineText(currentLineIndex, currentLine);
-        currentLineTokens = tokenMarker.markTokens(SegmentLine.create(currentLine), currentLineIndex);
+        currentLineTokens = tokenCache.getTokens(tokenMarker, currentLine, currentLineIndex);
 
         paintHighlight(gfx, line, y);
 
@@ -757,7 +1165,9 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         gfx.setFont(defaultFont.getPrimaryFont());
         gfx.setColor(defaultColor);
         y += fm.getHeight();
+        int startX = x;
         x = SyntaxUtilities.paintSyntaxLine(currentLine, currentLineTokens, styles, this, gfx, defaultFont, x, y, specialCharPainter);
+        textArea.lineMeasured(line, x - startX);
 
         if (eolMarkers) {
             gfx.setColor(eolMarkerColor);
@@ -773,14 +1183,22 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         }
 
         if (highlights != null) {
-            highlights.paintHighlight(gfx, line, y);
+            TextAreaMetrics metrics = textArea.metrics;
+            if (metrics == null) {
+                highlights.paintHighlight(gfx, line, y);
+            }
+            else {
+                long start = System.nanoTime();
+                highlights.paintHighlight(gfx, line, y);
+                metrics.highlightPainted(System.nanoTime() - start);
+            }
         }
 
         if (bracketHighlight && line == textArea.getBracketLine()) {
             paintBracketHighlight(gfx, line, y);
         }
 
-        if (line == textArea.getCaretLine()) {
+        if (line == textArea.getCaretLine() && !paintingBackingStore) {
             paintCaret(gfx, line, y);
         }
     }
@@ -865,7 +1283,7 @@ public class TextAreaPainter extends JComponent implements TabExpander, Accessib
         if (textArea.isCaretVisible()) {
             int offset = textArea.getCaretPosition()
                     - textArea.getLineStartOffset(line);
-            int caretX = textArea.offsetToX(line, offset);
+            int caretX = textArea._offsetToX(line, offset);
             int caretWidth = ((blockCaret ||
                     textArea.isOverwriteEnabled()) ?
                     fm.charWidth('w') : simpleCaretWidth);
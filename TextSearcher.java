@@ -0,0 +1,170 @@
+/*
+*  TextSearcher.java
+*
+*  � Copyright 2001-2004 Volante Technologies, Inc.
+*  All rights reserved.
+*
+*  This software is the confidential and proprietary information of Volante
+*  Technologies Inc. Your use of this software is governed by the terms of the
+*  license agreement and/or any nondisclosure agreements you have entered
+*  into with Volante.  This software may not be disseminated, distributed
+*  or otherwise disclosed without the prior, written permission of Volante.
+*/
+package com.tplus.transform.swing.text;
+
+import java.util.Arrays;
+
+/**
+ * Finds a literal string in a <code>CharSequence</code> with the
+ * Boyer-Moore-Horspool algorithm, optionally ignoring case and matching
+ * whole words only. A searcher is built once per search text and does
+ * not allocate while searching.
+ * <p/>
+ * Case is ignored the way <code>String.regionMatches()</code> ignores
+ * it, by comparing characters folded to upper and then lower case.
+ */
+public class TextSearcher {
+    private final String searchText;
+    private final boolean matchCase;
+    private final boolean matchWord;
+    private final char[] pattern;
+    // shifts for folded chars below 256
+    private final int[] shifts = new int[256];
+    // shifts for the other folded chars of the pattern, sorted by char
+    private final char[] highChars;
+    private final int[] highShifts;
+
+    public TextSearcher(String searchText, boolean matchCase, boolean matchWord) {
+        if (searchText.length() == 0) {
+            throw new IllegalArgumentException("Empty search text");
+        }
+        this.searchText = searchText;
+        this.matchCase = matchCase;
+        this.matchWord = matchWord;
+
+        int length = searchText.length();
+        pattern = new char[length];
+        for (int i = 0; i < length; i++) {
+            pattern[i] = fold(searchText.charAt(i));
+        }
+        Arrays.fill(shifts, length);
+        char[] high = new char[length];
+        int[] highShift = new int[length];
+        int highCount = 0;
+        for (int i = 0; i < length - 1; i++) {
+            char c = pattern[i];
+            int shift = length - 1 - i;
+            if (c < 256) {
+                shifts[c] = shift;
+            }
+            else {
+                int j = 0;
+                while (j < highCount && high[j] != c) {
+                    j++;
+                }
+                high[j] = c;
+                highShift[j] = shift;
+                if (j == highCount) {
+                    highCount++;
+                }
+            }
+        }
+        // sort the few high chars so they can be binary searched
+        for (int i = 1; i < highCount; i++) {
+            char c = high[i];
+            int shift = highShift[i];
+            int j = i - 1;
+            while (j >= 0 && high[j] > c) {
+                high[j + 1] = high[j];
+                highShift[j + 1] = highShift[j];
+                j--;
+            }
+            high[j + 1] = c;
+            highShift[j + 1] = shift;
+        }
+        highChars = Arrays.copyOf(high, highCount);
+        highShifts = Arrays.copyOf(highShift, highCount);
+    }
+
+    public String getSearchText() {
+        return searchText;
+    }
+
+    public boolean isMatchCase() {
+        return matchCase;
+    }
+
+    public boolean isMatchWord() {
+        return matchWord;
+    }
+
+    /**
+     * Returns true if this searcher finds the given text with the given
+     * options, so that it can be reused.
+     */
+    public boolean isFor(String searchText, boolean matchCase, boolean matchWord) {
+        return this.searchText.equals(searchText) && this.matchCase == matchCase && this.matchWord == matchWord;
+    }
+
+    /**
+     * Returns the length of a match.
+     */
+    public int getLength() {
+        return pattern.length;
+    }
+
+    /**
+     * Returns the offset of the first match that lies completely within
+     * <code>start</code> and <code>end</code>, or -1 if there is none.
+     * Word boundaries are checked against the whole text, not just the
+     * searched range.
+     */
+    public int indexOf(CharSequence text, int start, int end) {
+        int length = pattern.length;
+        int last = length - 1;
+        int i = Math.max(start, 0);
+        end = Math.min(end, text.length());
+        while (i + length <= end) {
+            char c = fold(text.charAt(i + last));
+            if (c == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && fold(text.charAt(i + j)) == pattern[j]) {
+                    j--;
+                }
+                if (j < 0 && (!matchWord || isWordBoundary(text, i, i + length))) {
+                    return i;
+                }
+            }
+            i += getShift(c);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the text between <code>start</code> and
+     * <code>end</code> is not preceded or followed by an identifier
+     * character.
+     */
+    public static boolean isWordBoundary(CharSequence text, int start, int end) {
+        return (start == 0 || !Character.isJavaIdentifierPart(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end)));
+    }
+
+    private int getShift(char c) {
+        if (c < 256) {
+            return shifts[c];
+        }
+        int index = Arrays.binarySearch(highChars, c);
+        return index < 0 ? pattern.length : highShifts[index];
+    }
+
+    private char fold(char c) {
+        if (matchCase) {
+            return c;
+        }
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}